@@ -0,0 +1,105 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.sample.SampleApplication;
+import org.jetbrains.test.CallTree;
+import org.jetbrains.test.TraceIndex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Runs {@link SampleApplication} with the jar of benchmarks as {@link org.jetbrains.test.ProfilingAgent},
+ * parses the output of the agent and compares it with the expected tree. Instrumented methods take wide
+ * primitives and arrays, are synchronized and throw, so this checks the class file rewriting
+ * of {@code ProfilingTransformer} end to end. The application has to print the same result as without
+ * the agent. The process exits with 1 if anything differs:
+ * <pre>
+ * <code>java -cp benchmarks/target/benchmarks.jar org.jetbrains.test.benchmarks.AgentRoundTripCheck</code></pre>
+ */
+public final class AgentRoundTripCheck {
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final String SAMPLE = "org.jetbrains.sample.SampleApplication";
+    // times and identity hashes of arrays differ from run to run
+    private static final Pattern TIME = Pattern.compile(" \\[[^\\[]*]$");
+    private static final Pattern IDENTITY = Pattern.compile("@[0-9a-f]+");
+    private static final List<String> EXPECTED = Arrays.asList(
+            "entry_point",
+            "-" + SAMPLE + ".main([Ljava.lang.String; var0 = [Ljava.lang.String;@)",
+            "--" + SAMPLE + ".run(int var0 = 3)",
+            "---" + SAMPLE + ".add(long var0 = 0, double var1 = 0.0)",
+            "----" + SAMPLE + ".scale(long var0 = 0, double var1 = 0.0)",
+            "---" + SAMPLE + ".add(long var0 = 10, double var1 = 0.5)",
+            "----" + SAMPLE + ".scale(long var0 = 10, double var1 = 0.5)",
+            "---" + SAMPLE + ".add(long var0 = 20, double var1 = 1.0)",
+            "----" + SAMPLE + ".scale(long var0 = 20, double var1 = 1.0)",
+            "---" + SAMPLE + ".average([I var0 = [I@)",
+            "---" + SAMPLE + ".check(int var0 = -1)",
+            "----" + SAMPLE + ".validate(int var0 = -1)",
+            "---" + SAMPLE + ".describe([J var0 = [J@, char var1 = x, float var2 = 2.5)");
+
+    private AgentRoundTripCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File jar = new File(AgentRoundTripCheck.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        File output = File.createTempFile("agent", ".txt");
+        File stdout = File.createTempFile("agent", ".out");
+        try {
+            String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+            Process process = new ProcessBuilder(java,
+                    "-javaagent:" + jar + "=include=org.jetbrains.sample.*,output=" + output,
+                    "-cp", jar.getPath(), SAMPLE)
+                    .redirectOutput(stdout)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                fail("instrumented application doesn't exit in " + TIMEOUT_SECONDS + " s");
+            }
+            if (process.exitValue() != 0) {
+                fail("instrumented application exits with " + process.exitValue());
+            }
+
+            String result = new String(Files.readAllBytes(stdout.toPath()), StandardCharsets.UTF_8).trim();
+            String expectedResult = String.valueOf(new SampleApplication().run(3));
+            if (!result.equals(expectedResult)) {
+                fail("instrumented application prints " + result + " instead of " + expectedResult);
+            }
+
+            List<CallTree> trees = CallTree.parse(output);
+            if (trees.size() != 1) {
+                fail("expected a tree of the main thread, got " + trees.size() + " trees");
+            }
+            List<String> actual = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new StringReader(trees.get(0).toString()))) {
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    actual.add(IDENTITY.matcher(TIME.matcher(line).replaceAll("")).replaceAll("@"));
+                }
+            }
+            if (!actual.equals(EXPECTED)) {
+                System.err.println("expected:");
+                EXPECTED.forEach(System.err::println);
+                System.err.println("recorded:");
+                actual.forEach(System.err::println);
+                fail("recorded tree is different");
+            }
+            System.out.println("recorded tree of " + (actual.size() - 1) + " calls is the same as expected");
+        } finally {
+            Files.deleteIfExists(output.toPath());
+            Files.deleteIfExists(TraceIndex.fileFor(output).toPath());
+            Files.deleteIfExists(stdout.toPath());
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+}
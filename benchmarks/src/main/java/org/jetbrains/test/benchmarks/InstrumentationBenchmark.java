@@ -0,0 +1,104 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.ArgumentPolicy;
+import org.jetbrains.test.CallSite;
+import org.jetbrains.test.CallTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single stepIn and close pair depending on arguments and recording mode.
+ * Every invocation records a batch of calls into a fresh tree, so memory doesn't grow between invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentationBenchmark {
+    private static final int BATCH = 1000;
+    private static final CallSite ONE_ARG_SITE =
+            CallSite.of(InstrumentationBenchmark.class, "oneArgCallSite", String.class);
+
+    @Param({"eager", "lazy"})
+    public String arguments;
+
+    @Param({"false", "true"})
+    public boolean aggregating;
+
+    private CallTree tree;
+    private final Object payload = new Object();
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public CallTree noArgs() {
+        tree = newTree();
+        for (int i = 0; i < BATCH; i++) {
+            noArgsCall();
+        }
+        return tree;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public CallTree oneArg() {
+        tree = newTree();
+        for (int i = 0; i < BATCH; i++) {
+            oneArgCall("argument");
+        }
+        return tree;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public CallTree manyArgs() {
+        tree = newTree();
+        for (int i = 0; i < BATCH; i++) {
+            manyArgsCall(i, 42L, "argument", payload, 3.14, true);
+        }
+        return tree;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public CallTree oneArgCallSite() {
+        tree = newTree();
+        for (int i = 0; i < BATCH; i++) {
+            oneArgCallSite("argument");
+        }
+        return tree;
+    }
+
+    private CallTree newTree() {
+        CallTree result = new CallTree();
+        result.getSettings().setArgumentPolicy(arguments.equals("lazy") ? ArgumentPolicy.lazy() : ArgumentPolicy.eager());
+        result.getSettings().setAggregating(aggregating);
+        return result;
+    }
+
+    private void noArgsCall() {
+        try (CallTree.Overseer ignored = tree.stepIn()) {
+            // nothing to do, only instrumentation is measured
+        }
+    }
+
+    private void oneArgCall(String s) {
+        try (CallTree.Overseer ignored = tree.stepIn(s)) {
+            // nothing to do, only instrumentation is measured
+        }
+    }
+
+    private void manyArgsCall(int a, long b, String c, Object d, double e, boolean f) {
+        try (CallTree.Overseer ignored = tree.stepIn(a, b, c, d, e, f)) {
+            // nothing to do, only instrumentation is measured
+        }
+    }
+
+    private void oneArgCallSite(String s) {
+        try (CallTree.Overseer ignored = tree.stepIn(ONE_ARG_SITE, s)) {
+            // nothing to do, only instrumentation is measured
+        }
+    }
+}
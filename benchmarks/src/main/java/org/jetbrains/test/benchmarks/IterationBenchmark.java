@@ -0,0 +1,36 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.CallTree;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traversal of trees with the same amount of entries but different shapes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IterationBenchmark {
+    @Param({"wide", "deep"})
+    public String shape;
+
+    private CallTree tree;
+
+    @Setup
+    public void setUp() {
+        // both have 65536 leaves
+        tree = shape.equals("wide") ? Trees.generate(3, 256) : Trees.generate(17, 2);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+        for (CallTree.CallTreeEntry entry : tree) {
+            bh.consume(entry);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.BinaryTraceReader;
+import org.jetbrains.test.BinaryTraceWriter;
+import org.jetbrains.test.CallTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading files with 100 trees of 4^5 entries each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    private File text;
+    private File binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        text = Trees.generateFile(100, 6, 4);
+        binary = File.createTempFile("trees", ".bin");
+        binary.deleteOnExit();
+        BinaryTraceWriter.fromText(text, binary);
+    }
+
+    @Benchmark
+    public List<CallTree> text() throws IOException {
+        return CallTree.parse(text);
+    }
+
+    @Benchmark
+    public List<CallTree> binary() throws IOException {
+        try (BinaryTraceReader reader = new BinaryTraceReader(binary)) {
+            return reader.readAll();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.ArgumentPolicy;
+import org.jetbrains.test.CallSite;
+import org.jetbrains.test.CallTree;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that recording into a cleared tree and into an aggregated tree doesn't allocate anything
+ * once the tree has grown, the same cases as in {@link RecyclingBenchmark}, with lazy arguments,
+ * arguments that are not captured and both of them truncated. Allocated bytes of the thread
+ * are taken from {@link com.sun.management.ThreadMXBean}, the process exits with 1 if anything is allocated:
+ * <pre>
+ * <code>java -cp benchmarks/target/benchmarks.jar org.jetbrains.test.benchmarks.RecyclingAllocationCheck</code></pre>
+ */
+public final class RecyclingAllocationCheck {
+    private static final int CALLS = 100_000;
+    private static final int ROUNDS = 20;
+    private static final CallSite SITE = CallSite.of(RecyclingAllocationCheck.class, "call", String.class, int.class);
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Object[] args = {"argument", 42};
+    private final CallTree tree;
+
+    private RecyclingAllocationCheck(ArgumentPolicy policy, boolean aggregating) {
+        tree = new CallTree();
+        tree.getSettings().setArgumentPolicy(policy);
+        tree.getSettings().setAggregating(aggregating);
+    }
+
+    public static void main(String[] args) {
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.err.println("allocated memory of threads is not measured by this JVM");
+            System.exit(2);
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        // eager arguments are converted to new strings on every call, so they are not checked
+        ArgumentPolicy[] policies = {ArgumentPolicy.lazy(), ArgumentPolicy.none(),
+                ArgumentPolicy.lazy().truncatedTo(4), ArgumentPolicy.none().truncatedTo(4)};
+        boolean allocating = false;
+        for (ArgumentPolicy policy : policies) {
+            long reused = new RecyclingAllocationCheck(policy, false).measure();
+            long aggregated = new RecyclingAllocationCheck(policy, true).measure();
+            System.out.println("allocated in steady state with " + policy + " arguments: reused " + reused
+                    + " bytes, aggregated " + aggregated + " bytes per " + CALLS + " calls");
+            allocating |= reused > 0 || aggregated > 0;
+        }
+        if (allocating) {
+            System.exit(1);
+        }
+    }
+
+    // allocated bytes of the last round, earlier rounds grow the tree, the pool of entries and compile the code
+    private long measure() {
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long overhead = allocatedBytes() - allocatedBytes();
+            long start = allocatedBytes();
+            record();
+            allocated = allocatedBytes() - start + overhead;
+        }
+        return allocated;
+    }
+
+    private void record() {
+        // aggregated calls are added to the same entry, as in the benchmark
+        if (!tree.getSettings().isAggregating()) {
+            tree.clear();
+        }
+        for (int i = 0; i < CALLS; i++) {
+            call("argument", 42);
+        }
+    }
+
+    private void call(String name, int value) {
+        try (CallTree.Overseer ignored = tree.stepIn(SITE, args)) {
+            // nothing to do, only instrumentation is measured
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
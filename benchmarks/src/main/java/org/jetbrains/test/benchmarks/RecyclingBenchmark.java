@@ -0,0 +1,75 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.ArgumentPolicy;
+import org.jetbrains.test.CallSite;
+import org.jetbrains.test.CallTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording into a tree that is cleared and reused, compared to recording into a fresh tree.
+ * Run with {@code -prof gc}: with a call site, lazy arguments and a reused arguments array
+ * both reused and aggregated trees shouldn't allocate anything per call,
+ * {@link RecyclingAllocationCheck} fails if they do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecyclingBenchmark {
+    private static final int BATCH = 1000;
+    private static final CallSite SITE = CallSite.of(RecyclingBenchmark.class, "call", String.class, int.class);
+
+    // arguments of every call, passed to stepIn without a varargs array
+    private final Object[] args = {"argument", 42};
+    private final CallTree reused = newTree(false);
+    private final CallTree aggregated = newTree(true);
+    private CallTree tree;
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public CallTree fresh() {
+        tree = newTree(false);
+        record();
+        return tree;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public CallTree reused() {
+        tree = reused;
+        tree.clear();
+        record();
+        return tree;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public CallTree aggregated() {
+        tree = aggregated;
+        record();
+        return tree;
+    }
+
+    private void record() {
+        for (int i = 0; i < BATCH; i++) {
+            call("argument", 42);
+        }
+    }
+
+    private void call(String name, int value) {
+        try (CallTree.Overseer ignored = tree.stepIn(SITE, args)) {
+            // nothing to do, only instrumentation is measured
+        }
+    }
+
+    private static CallTree newTree(boolean aggregating) {
+        CallTree result = new CallTree();
+        result.getSettings().setArgumentPolicy(ArgumentPolicy.lazy());
+        result.getSettings().setAggregating(aggregating);
+        return result;
+    }
+}
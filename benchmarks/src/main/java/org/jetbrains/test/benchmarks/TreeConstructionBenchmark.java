@@ -0,0 +1,28 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.CallTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording of whole trees of different shapes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeConstructionBenchmark {
+    @Param({"4", "8"})
+    public int depth;
+
+    @Param({"2", "4"})
+    public int fanout;
+
+    @Benchmark
+    public CallTree build() {
+        return Trees.generate(depth, fanout);
+    }
+}
@@ -0,0 +1,52 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.CallTree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Builds call trees of the given shape by calling instrumented methods.
+ */
+final class Trees {
+    private static CallTree tree;
+
+    private Trees() {
+    }
+
+    /**
+     * @return tree with one top level call and fanout callees on every level except the last one
+     */
+    static synchronized CallTree generate(int depth, int fanout) {
+        CallTree result = new CallTree();
+        tree = result;
+        node(depth, fanout, "root");
+        tree = null;
+        return result;
+    }
+
+    /**
+     * @return text file with the given amount of trees
+     */
+    static File generateFile(int trees, int depth, int fanout) throws IOException {
+        File f = File.createTempFile("trees", ".txt");
+        f.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(f)) {
+            for (int i = 0; i < trees; i++) {
+                generate(depth, fanout).write(fos);
+            }
+        }
+        return f;
+    }
+
+    private static void node(int depth, int fanout, String name) {
+        try (CallTree.Overseer ignored = tree.stepIn(depth, fanout, name)) {
+            if (depth > 1) {
+                for (int i = 0; i < fanout; i++) {
+                    node(depth - 1, fanout, name + i);
+                }
+            }
+        }
+    }
+}
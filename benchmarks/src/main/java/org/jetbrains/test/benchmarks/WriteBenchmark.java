@@ -0,0 +1,50 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.BinaryTraceWriter;
+import org.jetbrains.test.CallTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a tree of 4^7 entries to a stream that discards the data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private CallTree tree;
+
+    @Setup
+    public void setUp() {
+        tree = Trees.generate(8, 4);
+    }
+
+    @Benchmark
+    public void text() throws IOException {
+        tree.write(NULL);
+    }
+
+    @Benchmark
+    public void binary() throws IOException {
+        try (BinaryTraceWriter writer = new BinaryTraceWriter(Channels.newChannel(NULL))) {
+            writer.write(tree);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.AsyncTraceWriter;
+import org.jetbrains.test.CallSite;
+import org.jetbrains.test.CallTree;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link AsyncTraceWriter} gives up when the collector closes the connection
+ * in the middle of a tree: the writer has to fail and {@link AsyncTraceWriter#close()} has to return
+ * instead of waiting for a writer thread that never ends. The process exits with 1 if it hangs:
+ * <pre>
+ * <code>java -cp benchmarks/target/benchmarks.jar org.jetbrains.test.benchmarks.WriterFailureCheck</code></pre>
+ */
+public final class WriterFailureCheck {
+    private static final int CALLS = 100_000;
+    private static final int TREES = 4;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final CallSite SITE = CallSite.of(WriterFailureCheck.class, "call", String.class);
+
+    private WriterFailureCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // trees are much larger than the buffer of the writer and the buffers of the socket
+        CallTree tree = new CallTree();
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        String argument = new String(chars);
+        for (int i = 0; i < CALLS; i++) {
+            try (CallTree.Overseer ignored = tree.stepIn(SITE, argument)) {
+                // only the size of the tree matters
+            }
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            AsyncTraceWriter writer = AsyncTraceWriter.connect(server.getLocalAddress());
+            try (SocketChannel peer = server.accept()) {
+                for (int i = 0; i < TREES; i++) {
+                    writer.write(tree);
+                }
+                // the peer reads the beginning of the first tree and goes away
+                peer.read(ByteBuffer.allocate(1 << 10));
+            }
+
+            Thread closing = new Thread(() -> {
+                try {
+                    writer.close();
+                    System.out.println("writer is closed without an error");
+                } catch (IOException e) {
+                    System.out.println("writer is closed: " + e.getMessage());
+                }
+            }, "closing writer");
+            closing.setDaemon(true);
+            closing.start();
+            closing.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            if (closing.isAlive()) {
+                System.err.println("writer is not closed in " + TIMEOUT_SECONDS + " s after the peer has gone");
+                System.exit(1);
+            }
+            System.out.println("written " + writer.getWrittenTrees() + " trees, dropped " + writer.getDroppedTrees());
+        }
+    }
+
+    private static void call(String argument) {
+    }
+}
@@ -0,0 +1,62 @@
+package org.jetbrains.sample;
+
+/**
+ * Application for trying out {@link org.jetbrains.test.ProfilingAgent}, classes of the profiler itself
+ * are never instrumented. Calls don't depend on time or threads, so the recorded tree is always the same:
+ * <pre>
+ * <code>java -javaagent:agent.jar=include=org.jetbrains.sample.*,output=calls.txt -cp out org.jetbrains.sample.SampleApplication</code></pre>
+ * Methods take wide primitives and arrays, some are synchronized and some throw,
+ * which are the cases that instrumentation has to get right.
+ */
+public class SampleApplication {
+    private long total;
+
+    public static void main(String[] args) {
+        System.out.println(new SampleApplication().run(3));
+    }
+
+    public long run(int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            add(i * 10L, 0.5 * i);
+        }
+        double average = average(new int[]{1, 2, 6});
+        try {
+            check(-1);
+        } catch (IllegalArgumentException e) {
+            // the call is recorded even though it has thrown
+            total += e.getMessage().length();
+        }
+        return total + (long) average + describe(new long[]{total}, 'x', 2.5f).length();
+    }
+
+    private synchronized void add(long value, double weight) {
+        total += scale(value, weight);
+    }
+
+    private static long scale(long value, double weight) {
+        return (long) (value * weight);
+    }
+
+    static double average(int[] values) {
+        long sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return (double) sum / values.length;
+    }
+
+    // the exception passes through two instrumented methods
+    private static void check(int value) {
+        validate(value);
+    }
+
+    private static void validate(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative: " + value);
+        }
+    }
+
+    private static synchronized String describe(long[] values, char mark, float factor) {
+        return mark + String.valueOf(values[0] * factor);
+    }
+}
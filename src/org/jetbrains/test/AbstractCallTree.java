@@ -0,0 +1,134 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Everything that can be done with calls once they are recorded: iteration in order of execution,
+ * visiting, writing in the text format and comparison. It's shared by {@link CallTree}, which records calls,
+ * and {@link CompactCallTree}, which only keeps them. Trees are equal if their entries are equal,
+ * no matter how they are stored.
+ *
+ * @param <E> type of entries of the tree
+ */
+public abstract class AbstractCallTree<E extends AbstractCallTree.Entry> implements Iterable<E> {
+    /**
+     * @return entry with depth 0 that has top level calls as children
+     */
+    abstract E getRoot();
+
+    public Stream<E> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    public Stream<E> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Writes the tree in the text format. Only writers that reach a file or a socket count trees
+     * in {@link ProfilerMetrics}, see {@link TextTraceWriter#write(AbstractCallTree, OutputStream)}.
+     */
+    public void write(OutputStream os) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        for (E entry : this) {
+            out.println(entry);
+        }
+        out.println();
+        out.flush();
+    }
+
+    /**
+     * Passes all entries to the visitor in order of execution.
+     */
+    public void accept(CallTreeVisitor visitor) {
+        for (E entry : this) {
+            if (entry.isAsync()) {
+                visitor.onAsyncEnter(entry.getDepth(), entry.getCaller(), entry.getMethod(), entry.getArgs(),
+                        entry.getCalls(), entry.getTotalTime(), entry.getSelfTime());
+            } else {
+                visitor.onEnter(entry.getDepth(), entry.getCaller(), entry.getMethod(), entry.getArgs(),
+                        entry.getCalls(), entry.getTotalTime(), entry.getSelfTime());
+            }
+        }
+        visitor.onTreeEnd();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof AbstractCallTree && getRoot().subtreeEquals(((AbstractCallTree<?>) other).getRoot());
+    }
+
+    /**
+     * Hash is computed from hashes of subtrees, see {@link Entry#getSubtreeHash()},
+     * so it takes time proportional only to the amount of top level calls.
+     */
+    @Override
+    public int hashCode() {
+        return getRoot().getSubtreeHash();
+    }
+
+    @Override
+    public String toString() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            write(baos);
+            return baos.toString();
+        } catch (IOException e) {
+            return "object is corrupted";
+        }
+    }
+
+    /**
+     * Read-only view of a call. Like trees, entries of different trees are equal if their data is equal,
+     * see {@link CallTree.CallTreeEntry#equals(Object)}.
+     */
+    public interface Entry {
+        int getDepth();
+
+        Class<?> getCaller();
+
+        Method getMethod();
+
+        String[] getArgs();
+
+        /**
+         * @return callees in order of calls
+         */
+        List<? extends Entry> getChildren();
+
+        /**
+         * @see CallTree.CallTreeEntry#getCalls()
+         */
+        long getCalls();
+
+        /**
+         * @see CallTree.CallTreeEntry#getTotalTime()
+         */
+        long getTotalTime();
+
+        /**
+         * @see CallTree.CallTreeEntry#getSelfTime()
+         */
+        long getSelfTime();
+
+        /**
+         * @see CallTree.CallTreeEntry#isAsync()
+         */
+        boolean isAsync();
+
+        /**
+         * @return hash of data of this entry and all its callees, equal subtrees have equal hashes
+         */
+        int getSubtreeHash();
+
+        /**
+         * Compares whole subtrees, see {@link CallTree.CallTreeEntry#subtreeEquals(Entry)}.
+         */
+        boolean subtreeEquals(Entry other);
+    }
+}
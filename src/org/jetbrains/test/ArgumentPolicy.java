@@ -0,0 +1,111 @@
+package org.jetbrains.test;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Defines how arguments of instrumented methods are stored.
+ * By default arguments are converted to strings right in stepIn, which may be expensive.
+ * Conversion can be postponed until the tree is written or printed with {@link #lazy()},
+ * stored strings can be limited with {@link #truncatedTo(int)} and arguments
+ * can be ignored completely with {@link #none()}.
+ * <p>
+ * Note that lazy policy keeps references to the arguments, so their state at the moment
+ * of writing is logged and they can't be garbage collected while the tree is alive.
+ */
+public final class ArgumentPolicy {
+    // this is what is written instead of arguments that are not captured
+    static final String DROPPED = "?";
+    private static final int MAX_CACHED_ARITY = 16;
+    private static final String[][] DROPPED_ARGS = new String[MAX_CACHED_ARITY][];
+
+    private static final ArgumentPolicy EAGER = new ArgumentPolicy(true, false, -1);
+    private static final ArgumentPolicy LAZY = new ArgumentPolicy(true, true, -1);
+    private static final ArgumentPolicy NONE = new ArgumentPolicy(false, false, -1);
+
+    static {
+        for (int i = 0; i < MAX_CACHED_ARITY; i++) {
+            DROPPED_ARGS[i] = dropped(i);
+        }
+    }
+
+    private final boolean capture;
+    private final boolean lazy;
+    private final int maxLength;
+
+    private ArgumentPolicy(boolean capture, boolean lazy, int maxLength) {
+        this.capture = capture;
+        this.lazy = lazy;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Arguments are converted to strings when the method is called.
+     */
+    public static ArgumentPolicy eager() {
+        return EAGER;
+    }
+
+    /**
+     * Arguments are converted to strings when they are needed for the first time.
+     */
+    public static ArgumentPolicy lazy() {
+        return LAZY;
+    }
+
+    /**
+     * Arguments are not captured at all.
+     */
+    public static ArgumentPolicy none() {
+        return NONE;
+    }
+
+    /**
+     * @return same policy that keeps at most maxLength first characters of every argument
+     */
+    public ArgumentPolicy truncatedTo(int maxLength) {
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("negative max length: " + maxLength);
+        }
+        return new ArgumentPolicy(capture, lazy, maxLength);
+    }
+
+    boolean isLazy() {
+        return lazy;
+    }
+
+    String[] render(Object[] args) {
+        if (!capture) {
+            return droppedArgs(args.length);
+        }
+        String[] result = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            String s = Objects.toString(args[i]);
+            result[i] = maxLength >= 0 && s.length() > maxLength ? s.substring(0, maxLength) + "..." : s;
+        }
+        return result;
+    }
+
+    /**
+     * @return {@link #DROPPED} for every argument, arrays of small arities are shared
+     */
+    static String[] droppedArgs(int arity) {
+        return arity < MAX_CACHED_ARITY ? DROPPED_ARGS[arity] : dropped(arity);
+    }
+
+    static boolean isShared(String[] args) {
+        return args != null && args.length < MAX_CACHED_ARITY && DROPPED_ARGS[args.length] == args;
+    }
+
+    private static String[] dropped(int arity) {
+        String[] result = new String[arity];
+        Arrays.fill(result, DROPPED);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        String kind = !capture ? "none" : lazy ? "lazy" : "eager";
+        return maxLength < 0 ? kind : kind + ", truncated to " + maxLength;
+    }
+}
@@ -0,0 +1,368 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes call trees in the format of {@link CallTree#write(OutputStream)} on a background thread,
+ * together with {@link TraceIndex}. Trees are handed off to a bounded queue, threads that hand them off
+ * wait while the queue is full, so the writer never falls behind by more than the capacity of the queue.
+ * <p>
+ * The writer can be used as a {@link CallTreeSettings#setRootCallListener(Consumer) root call listener},
+ * then every top level call is written as a separate tree as soon as it ends:
+ * <pre>
+ * <code>try (AsyncTraceWriter writer = new AsyncTraceWriter(new File("calls.txt"))) {
+ *     callTree.getSettings().setRootCallListener(writer);
+ *     // run the application
+ * } </code></pre>
+ * Calls must not be aggregated then, and a tree must not be cleared until the writer is flushed,
+ * because the writer reads entries of the tree after they are handed off.
+ * <p>
+ * Trees can also be sent to {@link TraceCollector}, see {@link #connect(SocketAddress)}.
+ * The buffer is written when it's full or when there is nothing else to write, so under load
+ * many trees are sent with one write.
+ */
+public class AsyncTraceWriter implements Consumer<CallTree.CallTreeEntry>, Closeable {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    // marks the end of the queue
+    private static final CallTree.CallTreeEntry END = new CallTree.CallTreeEntry(0, null, null, null, null);
+    private static final ProfilerMetrics METRICS = ProfilerMetrics.get();
+
+    // file or address, used in messages
+    private final String name;
+    // indexed file, null if the index is not written
+    private final File file;
+    private final WritableByteChannel channel;
+    private final BlockingQueue<CallTree.CallTreeEntry> queue;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // used only by the writer thread
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder line = new StringBuilder();
+    private char[] chars = new char[256];
+    private CharBuffer charBuffer = CharBuffer.wrap(chars);
+    private long[] offsets = new long[16];
+    private IOException failure;
+
+    // statistics, written by the writer thread only
+    private volatile long trees;
+    // trees taken from the queue, including the ones that were skipped after a failure
+    private volatile long taken;
+    private volatile long calls;
+    private volatile long bytes;
+    private volatile long writingNanos;
+    // guarded by this, the number of handed off trees is needed to wait until they are written
+    private long handedOff;
+    private long blockedNanos;
+    private long dropped;
+
+    public AsyncTraceWriter(File f) throws IOException {
+        this(f, DEFAULT_CAPACITY, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param capacity   number of trees that may wait to be written
+     * @param bufferSize size of the buffer that is filled before writing to the file
+     */
+    public AsyncTraceWriter(File f, int capacity, int bufferSize) throws IOException {
+        this(FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING), f.toString(), f, capacity, bufferSize);
+    }
+
+    private AsyncTraceWriter(WritableByteChannel channel, String name, File file, int capacity, int bufferSize) {
+        this.channel = channel;
+        this.name = name;
+        this.file = file;
+        queue = new ArrayBlockingQueue<>(capacity);
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        thread = new Thread(this::run, "call-tree-writer");
+        // the writer must be closed in order to write everything anyway
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return writer that sends trees to {@link TraceCollector} listening on the given address, without an index
+     */
+    public static AsyncTraceWriter connect(SocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        return new AsyncTraceWriter(channel, address.toString(), null, DEFAULT_CAPACITY, 1 << 16);
+    }
+
+    /**
+     * Hands off the whole tree. The tree must not change until it is written.
+     */
+    public void write(CallTree tree) {
+        handOff(tree.getRoot());
+    }
+
+    /**
+     * Hands off a top level call that has ended, it's written as a tree with a single call.
+     */
+    @Override
+    public void accept(CallTree.CallTreeEntry call) {
+        handOff(call);
+    }
+
+    private void handOff(CallTree.CallTreeEntry entry) {
+        boolean handed = !closed && queue.offer(entry);
+        long waited = 0;
+        if (!handed && !closed) {
+            long start = System.nanoTime();
+            try {
+                queue.put(entry);
+                handed = true;
+            } catch (InterruptedException e) {
+                // the call is lost, but the application is not broken
+                Thread.currentThread().interrupt();
+            }
+            waited = System.nanoTime() - start;
+        }
+        synchronized (this) {
+            blockedNanos += waited;
+            if (handed) {
+                handedOff++;
+            } else {
+                dropped++;
+            }
+        }
+    }
+
+    /**
+     * Waits until all trees that are handed off are written or dropped.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (this) {
+            while (taken < handedOff && thread.isAlive()) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining trees and the index.
+     *
+     * @throws IOException if any tree could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing " + name);
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (file != null) {
+            new TraceIndex(Arrays.copyOf(offsets, (int) trees + 1), file.lastModified()).write(TraceIndex.fileFor(file));
+        }
+    }
+
+    public long getWrittenTrees() {
+        return trees;
+    }
+
+    public long getWrittenCalls() {
+        return calls;
+    }
+
+    public long getWrittenBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return total time threads waited because the queue was full
+     */
+    public synchronized long getBlockedTime(TimeUnit unit) {
+        return unit.convert(blockedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return number of trees that were not written because the writer was closed, the thread was interrupted
+     * or an earlier tree could not be written
+     */
+    public synchronized long getDroppedTrees() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        long millis = TimeUnit.NANOSECONDS.toMillis(writingNanos);
+        double mbPerSecond = writingNanos == 0 ? 0 : bytes * 1e3 / writingNanos;
+        return String.format("%d trees, %d calls, %d bytes written in %d ms (%.1f MB/s), blocked for %d ms, dropped %d",
+                trees, calls, bytes, millis, mbPerSecond, getBlockedTime(TimeUnit.MILLISECONDS), getDroppedTrees());
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                CallTree.CallTreeEntry entry = queue.poll();
+                if (entry == null) {
+                    // nothing else to write for now, so the file is not behind
+                    drain();
+                    entry = queue.take();
+                }
+                if (entry == END) {
+                    break;
+                }
+                long start = System.nanoTime();
+                long position = position();
+                // the rest of the output would be corrupted after a failure, so it's not written
+                boolean written = failure == null && writeTree(entry);
+                long nanos = System.nanoTime() - start;
+                writingNanos += nanos;
+                if (written && METRICS.isEnabled()) {
+                    METRICS.written(1, position() - position, nanos);
+                }
+                synchronized (this) {
+                    if (written) {
+                        trees++;
+                    } else {
+                        dropped++;
+                    }
+                    taken++;
+                    notifyAll();
+                }
+            }
+            drain();
+        } catch (InterruptedException e) {
+            System.err.println("call tree writer is interrupted, " + name + " is incomplete");
+            failure = new InterruptedIOException("writer of " + name + " is interrupted");
+        } finally {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        // offsets are kept only for written trees, and the index is not written after a failure anyway
+        if (failure == null && file != null) {
+            offsets[(int) trees] = position();
+        }
+    }
+
+    // returns false if the tree could not be written
+    private boolean writeTree(CallTree.CallTreeEntry entry) {
+        if (file != null) {
+            if (trees + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[(int) trees] = position();
+        }
+        long written = 0;
+        try {
+            if (entry.getDepth() > 0) {
+                // a single call is written as a tree of its own
+                writeLine(END);
+            }
+            Iterator<CallTree.CallTreeEntry> it = entry.subtreeIterator();
+            while (it.hasNext()) {
+                CallTree.CallTreeEntry next = it.next();
+                writeLine(next);
+                if (next.getDepth() > 0) {
+                    written++;
+                }
+            }
+            line.setLength(0);
+            encode();
+        } catch (IOException e) {
+            // a failed write is reported by drain()
+            if (failure == null) {
+                System.err.println("can not write " + name + ": " + e.getMessage());
+                failure = e;
+            }
+            return false;
+        } catch (RuntimeException e) {
+            // e.g. an argument that can't be converted to a string, the rest of the queue still has to be taken
+            System.err.println("can not write " + name + ": " + e);
+            failure = new IOException("unable to write " + name, e);
+            return false;
+        }
+        calls += written;
+        return true;
+    }
+
+    private void writeLine(CallTree.CallTreeEntry entry) throws IOException {
+        line.setLength(0);
+        entry.format(line);
+        encode();
+    }
+
+    // encodes the line with a line separator at the end
+    private void encode() throws IOException {
+        line.append('\n');
+        int length = line.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+        line.getChars(0, length, chars, 0);
+        charBuffer.clear();
+        charBuffer.limit(length);
+        while (true) {
+            CoderResult result = encoder.encode(charBuffer, buffer, false);
+            if (result.isOverflow()) {
+                drain();
+                // the rest of the tree would never fit otherwise
+                if (failure != null) {
+                    throw failure;
+                }
+            } else if (result.isUnderflow()) {
+                return;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    // the buffer is emptied even after a failure, nothing is written then
+    private void drain() {
+        if (failure != null) {
+            buffer.clear();
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                bytes += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            System.err.println("can not write " + name + ": " + e.getMessage());
+            failure = e;
+        }
+        buffer.clear();
+    }
+
+    // position in the file where the next byte is written
+    private long position() {
+        return bytes + buffer.position();
+    }
+}
@@ -0,0 +1,235 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads call trees written by {@link BinaryTraceWriter}.
+ * The file is memory-mapped and entries are passed to a {@link CallTreeVisitor}
+ * as they are decoded, so trees don't have to be built in memory.
+ */
+public class BinaryTraceReader implements Closeable {
+    // files larger than that are mapped piece by piece
+    private static final long WINDOW_SIZE = 1 << 28;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+    private byte[] bytes = new byte[256];
+
+    // index = id, id 0 is null
+    private final List<String> strings = new ArrayList<>();
+    private final List<CallSite> methods = new ArrayList<>();
+
+    public BinaryTraceReader(File f) throws IOException {
+        channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        size = channel.size();
+        map(0, 0);
+        strings.add(null);
+        methods.add(new CallSite(null, null));
+        if (size < 4 || buffer.getInt() != BinaryTraceWriter.MAGIC) {
+            channel.close();
+            throw new IOException("not a binary trace file: " + f);
+        }
+    }
+
+    /**
+     * Passes entries of the next tree to the visitor.
+     *
+     * @return false if there are no more trees
+     */
+    public boolean next(CallTreeVisitor visitor) throws IOException {
+        boolean empty = true;
+        while (position() < size) {
+            byte tag = readByte();
+            switch (tag) {
+                case BinaryTraceWriter.STRING:
+                    readString();
+                    break;
+                case BinaryTraceWriter.METHOD:
+                    readMethod();
+                    break;
+                case BinaryTraceWriter.ENTRY:
+                case BinaryTraceWriter.ASYNC_ENTRY:
+                    readEntry(visitor, tag == BinaryTraceWriter.ASYNC_ENTRY);
+                    empty = false;
+                    break;
+                case BinaryTraceWriter.TREE_END:
+                    visitor.onTreeEnd();
+                    return true;
+                default:
+                    throw new IOException("file is corrupted, unknown record " + tag + " at " + (position() - 1));
+            }
+        }
+        if (!empty) {
+            throw new EOFException("last tree is incomplete");
+        }
+        return false;
+    }
+
+    /**
+     * Passes entries of all remaining trees to the visitor.
+     */
+    public void accept(CallTreeVisitor visitor) throws IOException {
+        while (next(visitor)) {
+            // visitor does all the work
+        }
+    }
+
+    public List<CallTree> readAll() throws IOException {
+        List<CallTree> trees = new ArrayList<>();
+        accept(CallTreeBuilder.into(trees));
+        return trees;
+    }
+
+    /**
+     * Converts binary file to the format of {@link CallTree#write(OutputStream)}.
+     */
+    public static void toText(File binary, File text) throws IOException {
+        try (BinaryTraceReader reader = new BinaryTraceReader(binary);
+             PrintWriter out = new PrintWriter(new BufferedWriter(
+                     new OutputStreamWriter(new FileOutputStream(text), StandardCharsets.UTF_8)))) {
+            reader.accept(new CallTreeVisitor() {
+                @Override
+                public void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                                    long calls, long totalNanos, long selfNanos) {
+                    out.println(CallTree.CallTreeEntry.format(depth, caller, method, args,
+                            calls, totalNanos, selfNanos));
+                }
+
+                @Override
+                public void onAsyncEnter(int depth, Class<?> caller, Method method, String[] args,
+                                         long calls, long totalNanos, long selfNanos) {
+                    StringBuilder line = new StringBuilder();
+                    CallTree.CallTreeEntry.format(line, depth, true, caller, method, args,
+                            calls, totalNanos, selfNanos);
+                    out.println(line);
+                }
+
+                @Override
+                public void onTreeEnd() {
+                    out.println();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readString() throws IOException {
+        int id = readVarint();
+        strings.add(id, readUtf8(readVarint()));
+    }
+
+    private void readMethod() throws IOException {
+        int id = readVarint();
+        String className = strings.get(readVarint());
+        String name = strings.get(readVarint());
+        Class<?>[] params = new Class<?>[readVarint()];
+        try {
+            for (int i = 0; i < params.length; i++) {
+                params[i] = Util.forName(strings.get(readVarint()));
+            }
+            Class<?> caller = className == null ? null : Class.forName(className);
+            Method method = name == null ? null : Util.getMethod(caller, name, params);
+            methods.add(id, new CallSite(caller, method));
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            throw new IOException("unable to restore method " + className + "." + name, e);
+        }
+    }
+
+    private void readEntry(CallTreeVisitor visitor, boolean async) throws IOException {
+        int depth = readVarint();
+        CallSite site = methods.get(readVarint());
+        String[] args = new String[readVarint()];
+        for (int i = 0; i < args.length; i++) {
+            int v = readVarint();
+            if (v == 0) {
+                args[i] = null;
+            } else if ((v & 1) == 0) {
+                args[i] = strings.get(v >>> 1);
+            } else {
+                args[i] = readUtf8(v >>> 1);
+            }
+        }
+        long calls = readVarlong();
+        // times are shifted by one so that unknown time is written as 0
+        long totalNanos = readVarlong() - 1;
+        long selfNanos = readVarlong() - 1;
+        // root doesn't have arguments at all
+        if (async) {
+            visitor.onAsyncEnter(depth, site.getCaller(), site.getMethod(), args, calls, totalNanos, selfNanos);
+        } else {
+            visitor.onEnter(depth, site.getCaller(), site.getMethod(), depth == 0 ? null : args,
+                    calls, totalNanos, selfNanos);
+        }
+    }
+
+    private String readUtf8(int length) throws IOException {
+        ensure(length);
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int readVarint() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = readByte();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("file is corrupted, malformed varint at " + position());
+    }
+
+    private long readVarlong() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("file is corrupted, malformed varint at " + position());
+    }
+
+    private byte readByte() throws IOException {
+        ensure(1);
+        return buffer.get();
+    }
+
+    private long position() {
+        return bufferStart + buffer.position();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        if (position() + bytes > size) {
+            throw new EOFException("unexpected end of file at " + position());
+        }
+        map(position(), bytes);
+    }
+
+    private void map(long start, int minLength) throws IOException {
+        bufferStart = start;
+        long length = Math.min(Math.max(WINDOW_SIZE, minLength), size - start);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+}
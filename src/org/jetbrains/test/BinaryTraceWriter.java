@@ -0,0 +1,271 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes call trees in compact binary format which is read by {@link BinaryTraceReader}.
+ * <p>
+ * File starts with {@link #MAGIC} and consists of records, each starting with a tag byte.
+ * All numbers are unsigned varints.
+ * <ul>
+ * <li>{@link #STRING}: id, length, UTF-8 bytes</li>
+ * <li>{@link #METHOD}: id, class name string id, method name string id,
+ * amount of parameters and string ids of parameter type names</li>
+ * <li>{@link #ENTRY}: depth, method id, amount of arguments, arguments (see writeArg),
+ * amount of calls, total and self time in nanoseconds plus one</li>
+ * <li>{@link #ASYNC_ENTRY}: same as entry, for calls made on another thread</li>
+ * <li>{@link #TREE_END}: no data</li>
+ * </ul>
+ * Strings and methods are defined right before the first entry that uses them,
+ * so trees can be written one by one without knowing what comes next.
+ * Id 0 means null for both strings and methods.
+ */
+public class BinaryTraceWriter implements CallTreeVisitor, Closeable {
+    private static final ProfilerMetrics METRICS = ProfilerMetrics.get();
+    static final int MAGIC = 0x43544232;
+    static final byte STRING = 1;
+    static final byte METHOD = 2;
+    static final byte ENTRY = 3;
+    static final byte TREE_END = 4;
+    static final byte ASYNC_ENTRY = 5;
+
+    // arguments are usually short and repetitive, others are written inline
+    // so that the dictionary doesn't grow forever on unique values
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+    private static final int MAX_DICTIONARY_STRING_LENGTH = 64;
+    private static final int VARINT_MAX_BYTES = 5;
+    private static final int VARLONG_MAX_BYTES = 10;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<CallSite, Integer> methods = new HashMap<>();
+    // bytes passed to the channel
+    private long flushed;
+
+    public BinaryTraceWriter(File f) throws IOException {
+        this(FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    public BinaryTraceWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer.putInt(MAGIC);
+    }
+
+    public void write(AbstractCallTree<?> tree) throws IOException {
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        long position = flushed + buffer.position();
+        try {
+            tree.accept(this);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (start != 0) {
+            METRICS.written(1, flushed + buffer.position() - position, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Converts file written with {@link CallTree#write(OutputStream)} to binary format.
+     */
+    public static void fromText(File text, File binary) throws IOException {
+        List<CallTree> trees = CallTree.parse(text);
+        try (BinaryTraceWriter writer = new BinaryTraceWriter(binary)) {
+            for (CallTree tree : trees) {
+                writer.write(tree);
+            }
+        }
+    }
+
+    @Override
+    public void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                        long calls, long totalNanos, long selfNanos) {
+        writeEntry(ENTRY, depth, caller, method, args, calls, totalNanos, selfNanos);
+    }
+
+    @Override
+    public void onAsyncEnter(int depth, Class<?> caller, Method method, String[] args,
+                             long calls, long totalNanos, long selfNanos) {
+        writeEntry(ASYNC_ENTRY, depth, caller, method, args, calls, totalNanos, selfNanos);
+    }
+
+    private void writeEntry(byte tag, int depth, Class<?> caller, Method method, String[] args,
+                            long calls, long totalNanos, long selfNanos) {
+        try {
+            int methodId = methodId(caller, method);
+            int argsCount = args == null ? 0 : args.length;
+            // definitions can't be written in the middle of the entry
+            for (int i = 0; i < argsCount; i++) {
+                defineArg(args[i]);
+            }
+            ensure(1 + 3 * VARINT_MAX_BYTES);
+            buffer.put(tag);
+            writeVarint(depth);
+            writeVarint(methodId);
+            writeVarint(argsCount);
+            for (int i = 0; i < argsCount; i++) {
+                writeArg(args[i]);
+            }
+            ensure(3 * VARLONG_MAX_BYTES);
+            writeVarlong(calls);
+            writeVarlong(totalNanos + 1);
+            writeVarlong(selfNanos + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void onTreeEnd() {
+        try {
+            ensure(1);
+            buffer.put(TREE_END);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int methodId(Class<?> caller, Method method) throws IOException {
+        if (caller == null && method == null) {
+            return 0;
+        }
+        CallSite site = new CallSite(caller, method);
+        Integer id = methods.get(site);
+        if (id != null) {
+            return id;
+        }
+        int classId = stringId(caller == null ? null : caller.getName());
+        int nameId = stringId(method == null ? null : method.getName());
+        Class<?>[] params = method == null ? new Class<?>[0] : method.getParameterTypes();
+        int[] paramIds = new int[params.length];
+        for (int i = 0; i < params.length; i++) {
+            paramIds[i] = stringId(params[i].getName());
+        }
+        id = methods.size() + 1;
+        methods.put(site, id);
+        ensure(1 + (4 + params.length) * VARINT_MAX_BYTES);
+        buffer.put(METHOD);
+        writeVarint(id);
+        writeVarint(classId);
+        writeVarint(nameId);
+        writeVarint(params.length);
+        for (int paramId : paramIds) {
+            writeVarint(paramId);
+        }
+        return id;
+    }
+
+    private int stringId(String s) throws IOException {
+        if (s == null) {
+            return 0;
+        }
+        Integer id = strings.get(s);
+        if (id != null) {
+            return id;
+        }
+        id = strings.size() + 1;
+        strings.put(s, id);
+        ensure(1 + VARINT_MAX_BYTES);
+        buffer.put(STRING);
+        writeVarint(id);
+        writeString(s);
+        return id;
+    }
+
+    private void defineArg(String arg) throws IOException {
+        if (arg != null && !strings.containsKey(arg) && strings.size() < MAX_DICTIONARY_SIZE
+                && arg.length() <= MAX_DICTIONARY_STRING_LENGTH) {
+            stringId(arg);
+        }
+    }
+
+    /**
+     * Argument is written as a single varint v: 0 for null, 2 * id for a string from the dictionary
+     * or 2 * length + 1 followed by UTF-8 bytes for an inline string.
+     */
+    private void writeArg(String arg) throws IOException {
+        if (arg == null) {
+            ensure(1);
+            writeVarint(0);
+            return;
+        }
+        Integer id = strings.get(arg);
+        if (id != null) {
+            ensure(VARINT_MAX_BYTES);
+            writeVarint(id << 1);
+        } else {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            ensure(VARINT_MAX_BYTES);
+            writeVarint(bytes.length << 1 | 1);
+            writeBytes(bytes);
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ensure(VARINT_MAX_BYTES);
+        writeVarint(bytes.length);
+        writeBytes(bytes);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void writeVarlong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which calls are recorded, see {@link CallTreeSettings#setFilter(CallFilter)}.
+ * <ul>
+ * <li>Include and exclude patterns are matched against {@code fully.qualified.ClassName.methodName},
+ * {@code *} matches any sequence of characters. Calls that don't match are not recorded
+ * but their callees are, as if they were called directly by the nearest recorded caller.</li>
+ * <li>Calls deeper than max depth are not recorded together with all their callees.</li>
+ * <li>Only some top level calls can be recorded, every n-th of them or at most one per time interval.
+ * Callees of calls that are not sampled are not recorded either.</li>
+ * </ul>
+ * Depth and sampling are checked before the caller is looked up, so calls that are
+ * not recorded for these reasons are very cheap. Pattern matching is done once per call site.
+ * <p>
+ * Filters are immutable except for sampling state, every method returns a new filter.
+ */
+public final class CallFilter {
+    private static final CallFilter ALL = new CallFilter(Collections.emptyList(), Collections.emptyList(),
+            Integer.MAX_VALUE, 1, 0);
+
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final int maxDepth;
+    private final long sampleEvery;
+    private final long sampleIntervalNanos;
+
+    private final AtomicLong topLevelCalls = new AtomicLong();
+    private final AtomicLong nextSampleNanos = new AtomicLong(System.nanoTime());
+    private final ConcurrentMap<CallSite, Boolean> matches = new ConcurrentHashMap<>();
+
+    private CallFilter(List<Pattern> includes, List<Pattern> excludes, int maxDepth,
+                       long sampleEvery, long sampleIntervalNanos) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.maxDepth = maxDepth;
+        this.sampleEvery = sampleEvery;
+        this.sampleIntervalNanos = sampleIntervalNanos;
+    }
+
+    /**
+     * @return filter that accepts everything
+     */
+    public static CallFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Only methods matching at least one of included patterns are recorded.
+     */
+    public CallFilter include(String pattern) {
+        return new CallFilter(with(includes, pattern), excludes, maxDepth, sampleEvery, sampleIntervalNanos);
+    }
+
+    public CallFilter exclude(String pattern) {
+        return new CallFilter(includes, with(excludes, pattern), maxDepth, sampleEvery, sampleIntervalNanos);
+    }
+
+    public CallFilter maxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("max depth should be positive: " + maxDepth);
+        }
+        return new CallFilter(includes, excludes, maxDepth, sampleEvery, sampleIntervalNanos);
+    }
+
+    /**
+     * Only every n-th top level call is recorded.
+     */
+    public CallFilter sampleEvery(long n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("sampling rate should be positive: " + n);
+        }
+        return new CallFilter(includes, excludes, maxDepth, n, sampleIntervalNanos);
+    }
+
+    /**
+     * At most one top level call per interval is recorded.
+     */
+    public CallFilter sampleInterval(long interval, TimeUnit unit) {
+        return new CallFilter(includes, excludes, maxDepth, sampleEvery, unit.toNanos(interval));
+    }
+
+    /**
+     * @param depth depth of the call in the tree, top level calls have depth 1
+     */
+    boolean isTooDeep(int depth) {
+        return depth > maxDepth;
+    }
+
+    /**
+     * Should be called once for every top level call.
+     */
+    boolean sample() {
+        if (sampleEvery > 1 && topLevelCalls.getAndIncrement() % sampleEvery != 0) {
+            return false;
+        }
+        if (sampleIntervalNanos > 0) {
+            long now = System.nanoTime();
+            long next = nextSampleNanos.get();
+            return now - next >= 0 && nextSampleNanos.compareAndSet(next, now + sampleIntervalNanos);
+        }
+        return true;
+    }
+
+    boolean accepts(CallSite site) {
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            return true;
+        }
+        Boolean result = matches.get(site);
+        if (result == null) {
+            result = match(site);
+            matches.putIfAbsent(site, result);
+        }
+        return result;
+    }
+
+    private boolean match(CallSite site) {
+        Method method = site.getMethod();
+        return accepts(site.getCaller() == null ? "" : site.getCaller().getName(),
+                method == null ? "" : method.getName());
+    }
+
+    /**
+     * Checks only include and exclude patterns.
+     */
+    boolean accepts(String className, String methodName) {
+        String name = className + '.' + methodName;
+        return (includes.isEmpty() || includes.stream().anyMatch(p -> p.matcher(name).matches()))
+                && excludes.stream().noneMatch(p -> p.matcher(name).matches());
+    }
+
+    private static List<Pattern> with(List<Pattern> patterns, String glob) {
+        List<Pattern> result = new ArrayList<>(patterns);
+        StringBuilder regex = new StringBuilder();
+        String[] parts = glob.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            if (!parts[i].isEmpty()) {
+                regex.append(Pattern.quote(parts[i]));
+            }
+        }
+        result.add(Pattern.compile(regex.toString()));
+        return Collections.unmodifiableList(result);
+    }
+}
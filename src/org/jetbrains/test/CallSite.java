@@ -0,0 +1,65 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+import java.util.Objects;
+
+/**
+ * Instrumented method resolved ahead of time.
+ * A call site can be created once and passed to {@link CallTree#stepIn(CallSite, Object...)}
+ * so that the caller is not looked up in the call stack on every call:
+ * <pre>
+ * <code>private static final CallSite ABC = CallSite.of(DummyApplication.class, "abc", String.class);
+ * ...
+ * try (CallTree.Overseer ignored = callTree.stepIn(ABC, s)) {
+ *     // code here
+ * } </code></pre>
+ */
+public final class CallSite {
+    private final Class<?> caller;
+    private final Method method;
+    // assigned by MethodTable, 0 until then. races are harmless because
+    // the table always gives the same id to equal call sites
+    int id;
+
+    CallSite(Class<?> caller, Method method) {
+        this.caller = caller;
+        this.method = method;
+    }
+
+    public static CallSite of(Class<?> caller, String name, Class<?>... params) {
+        try {
+            return new CallSite(caller, Util.getMethod(caller, name, params));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("no method " + name + " in " + caller.getName(), e);
+        }
+    }
+
+    public static CallSite of(Method method) {
+        return new CallSite(method.getDeclaringClass(), method);
+    }
+
+    public Class<?> getCaller() {
+        return caller;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CallSite && Objects.equals(caller, ((CallSite) other).caller)
+                && Objects.equals(method, ((CallSite) other).method);
+    }
+
+    @Override
+    public int hashCode() {
+        // written by hand because Objects.hash allocates an array
+        return 31 * Objects.hashCode(caller) + Objects.hashCode(method);
+    }
+
+    @Override
+    public String toString() {
+        return method == null ? String.valueOf(caller) : caller.getName() + '.' + method.getName();
+    }
+}
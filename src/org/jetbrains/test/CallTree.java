@@ -4,8 +4,10 @@ import java.io.*;
 import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Consumer;
 
 /**
  * Class for methods profiling.
@@ -16,164 +18,573 @@ import java.util.stream.IntStream;
  * } </code></pre>
  * CallTree supports writing and parsing the data in human-readable format
  * with {@link #write(OutputStream)} and {@link #parse(File)}.
- * Serialization is also supported.
+ * Serialization is also supported, compact binary format is available
+ * with {@link BinaryTraceWriter} and {@link BinaryTraceReader}.
  * <p>
- * Iteration over CallTree elements goes in order of execution.
+ * The way arguments are stored is configured with {@link #getSettings()},
+ * see {@link ArgumentPolicy}.
+ * <p>
+ * Iteration over CallTree elements goes in order of execution, see {@link AbstractCallTree}.
+ * <p>
+ * Every entry also keeps its execution time, see {@link CallTreeEntry#getTotalTime()}
+ * and {@link CallTreeEntry#getSelfTime()}. Times are not taken into account by equals.
+ * If calls are aggregated (see {@link CallTreeSettings#setAggregating(boolean)}),
+ * repeated calls of a method from the same call path share one entry, so the tree
+ * grows with the amount of distinct call paths rather than with the amount of calls.
+ * Calls can also be filtered, see {@link CallFilter}.
+ * <p>
+ * Trees that are only read can be kept in memory as {@link CompactCallTree}.
+ * <p>
+ * A tree is recorded by one thread, other threads may only take {@link #snapshot() snapshots} of it
+ * while it is being recorded. Everything else should be done when instrumented code is done.
  */
-public class CallTree implements Serializable, Iterable<CallTree.CallTreeEntry> {
+public class CallTree extends AbstractCallTree<CallTree.CallTreeEntry> implements Serializable {
     private final CallTreeEntry root;
     private CallTreeEntry current;
-    private int hash = 56630239;
+    private transient CallTreeSettings settings;
+    // depth of calls on the stack that are not recorded together with their callees
+    private transient int suppressed;
+    // depth of calls on the stack that are not recorded but their callees are
+    private transient int transparent;
+    private transient Overseer suppressedOverseer = new SuppressedOverseer(this);
+    private transient Overseer transparentOverseer = new TransparentOverseer(this);
+    // calls are strictly nested, so one handle is enough for all of them
+    private transient Overseer treeOverseer = new TreeOverseer(this);
+    // entries of cleared calls that are reused by new calls, null until the tree is cleared
+    private transient ArrayList<CallTreeEntry> recycled;
+    // amount of enters and exits, entries remember when they were entered and exited
+    private transient long events;
+    // events that are visible to other threads, see snapshot()
+    private transient volatile long publishedEvents;
+    // odd while the tree is being cleared
+    private transient volatile int clears;
+    // calls of tasks that have ended on other threads, they are attached by the recording thread
+    private transient ConcurrentLinkedQueue<AsyncCalls> pendingAsync = new ConcurrentLinkedQueue<>();
+    // context of the call that started the task, null unless this tree records a task, see AsyncContext
+    private transient AsyncContext task;
+    // set when calls of the task are handed to the tree of the caller, guarded by this
+    private transient boolean handedOver;
+    // thread that records the tree, only it attaches calls of tasks, see attachAsync()
+    private transient Thread recorder;
+    // set when the running top level call starts a task, so that the root call listener gets a copy of it
+    private transient boolean asyncStarted;
+
+    private static final AtomicLongFieldUpdater<CallTree> PUBLISHED_EVENTS =
+            AtomicLongFieldUpdater.newUpdater(CallTree.class, "publishedEvents");
 
     private static final String ROOT_IDENT = "entry_point";
+    private static final char ASYNC_MARK = '&';
+    private static final ProfilerMetrics METRICS = ProfilerMetrics.get();
 
     public CallTree() {
-        root = new CallTreeEntry(0, null, null, null, null);
+        this(new CallTreeSettings());
+    }
+
+    CallTree(CallTreeSettings settings) {
+        this(settings, 0);
+    }
+
+    // calls of the tree are deeper than the root by one
+    private CallTree(CallTreeSettings settings, int depth) {
+        this.settings = settings;
+        root = new CallTreeEntry(depth, null, null, null, null);
         current = root;
     }
 
-    private CallTree(CallTreeEntry root) {
+    CallTree(CallTreeEntry root) {
         this.root = root;
-        for (CallTreeEntry entry : this) {
-            current = entry;
+        this.settings = new CallTreeSettings();
+        // the last entry in order of execution
+        current = root;
+        while (!current.getChildren().isEmpty()) {
+            current = current.getChildren().get(current.getChildren().size() - 1);
         }
     }
 
+    /**
+     * Records a call of the method that calls this one. The method is looked up in the call stack
+     * on every call, which is much slower than passing a {@link CallSite} resolved once.
+     */
     public Overseer stepIn(Object... args) {
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        // index = 2 because of 2 calls we don't want to log -- getStackTrace and stepIn
-        StackTraceElement elem = stackTrace[2];
-        List<Class<?>> argsTypes = Arrays.stream(args)
-                .map(o -> o == null ? null : o.getClass())
-                .collect(Collectors.toList());
-        Class<?> caller = null;
-        Method method = null;
-        Overseer overseer = new Overseer(this);
-        try {
-            try {
-                caller = Class.forName(elem.getClassName());
-            } catch (ClassNotFoundException e) {
-                System.err.println("Unable to load caller class: " + e.getMessage());
-                return overseer;
+        return stepInFromStack(args);
+    }
+
+    /**
+     * Same as {@link #stepIn(Object...)} but does not inspect the call stack.
+     */
+    public Overseer stepIn(CallSite site, Object... args) {
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        Overseer skipped = skip();
+        Overseer result = skipped != null ? skipped : record(site, args);
+        if (start != 0) {
+            METRICS.stepIn(result == treeOverseer, System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Should be called directly from public stepIn called by the instrumented method.
+     */
+    Overseer stepInFromStack(Object[] args) {
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        Overseer skipped = skip();
+        // 3 frames we don't want to log -- MethodResolver.callSite, stepInFromStack and stepIn
+        Overseer result = skipped != null ? skipped : record(MethodResolver.callSite(3, args), args);
+        if (start != 0) {
+            METRICS.stepIn(result == treeOverseer, System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    // checks that can be done before the caller is known
+    private Overseer skip() {
+        if (suppressed > 0) {
+            suppressed++;
+            return suppressedOverseer;
+        }
+        CallFilter filter = settings.getFilter();
+        // tasks are sampled together with calls that start them
+        boolean topLevel = current == root && transparent == 0 && task == null;
+        if (filter.isTooDeep(current.getDepth() + 1) || topLevel && !filter.sample()) {
+            suppressed = 1;
+            return suppressedOverseer;
+        }
+        return null;
+    }
+
+    private Overseer record(CallSite site, Object[] args) {
+        if (!settings.getFilter().accepts(site)) {
+            transparent++;
+            return transparentOverseer;
+        }
+        enter(site, args, System.nanoTime());
+        return treeOverseer;
+    }
+
+    /**
+     * Records a call that happened at the given {@link System#nanoTime()}.
+     */
+    void enter(CallSite site, Object[] args, long nanos) {
+        if (recorder == null) {
+            recorder = Thread.currentThread();
+        }
+        attachAsync();
+        // resolution errors are not fatal here, we need to keep the log balanced anyway
+        // in order not to ruin all log messages in the future
+        Method method = site.getMethod();
+        ArgumentPolicy policy = settings.getArgumentPolicy(method);
+        current = settings.isAggregating()
+                ? current.merge(site.getCaller(), method, args, policy, recycled)
+                : current.add(site.getCaller(), method, args, policy, recycled);
+        current.startNanos = nanos;
+        // an aggregated entry may be entered again
+        current.running = true;
+        current.subtreeHash = 0;
+        if (current.enterEvent == Long.MAX_VALUE) {
+            current.enterEvent = ++events;
+            if (METRICS.isEnabled()) {
+                current.counted = true;
+                METRICS.entryAdded(current.args);
             }
-            // seems like getDeclaredMethods is enough and we don't need to look up
-            // methods recursively because we can see the actual caller in the call stack
-            method = findMethod(caller.getDeclaredMethods(), elem.getMethodName(), argsTypes);
-            if (method == null) {
-                System.err.println("Unable to find caller method " + elem.getMethodName());
+        } else {
+            current.exitEvent = Long.MAX_VALUE;
+            events++;
+        }
+        publishEvents();
+    }
+
+    /**
+     * Records the end of the current call that happened at the given {@link System#nanoTime()}.
+     */
+    void exit(long nanos) {
+        CallTreeEntry closed = current;
+        // time of aggregated calls is accumulated
+        closed.totalNanos = Math.max(closed.totalNanos, 0) + nanos - closed.startNanos;
+        closed.running = false;
+        closed.subtreeHash = closed.hashFromChildren();
+        closed.exitEvent = ++events;
+        publishEvents();
+        current = closed.getParent();
+        if (closed.depth == 1 && task == null) {
+            Consumer<CallTreeEntry> listener = settings.getRootCallListener();
+            if (listener != null) {
+                // tasks that have ended already are passed together with the call
+                attachAsync();
+                // tasks that end later would change entries the listener is reading, so it gets a copy
+                listener.accept(asyncStarted ? closed.copy(null) : closed);
+                if (!settings.isRetainingRootCalls()) {
+                    forget();
+                }
             }
-        } finally {
-            // any errors in the code above are very unlikely to happen but even if they
-            // did happen we need to keep the log balanced in order not to ruin
-            // all log messages in the future
-            current = current.add(caller, method,
-                    Arrays.stream(args)
-                            .map(Objects::toString)
-                            .toArray(String[]::new));
-            hash = hash * 31 + current.hashCode();
+            asyncStarted = false;
         }
-        return overseer;
     }
 
-    public void write(OutputStream os) throws IOException {
-        PrintWriter out = new PrintWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
-        for (CallTreeEntry entry : this) {
-            out.println(entry);
+    // ordered write is enough for snapshots and it's much cheaper than a volatile one
+    private void publishEvents() {
+        PUBLISHED_EVENTS.lazySet(this, events);
+    }
+
+    /**
+     * @return context of the current call, calls of tasks started with it become async callees of the current call
+     */
+    AsyncContext capture() {
+        if (recorder == null) {
+            recorder = Thread.currentThread();
+        }
+        asyncStarted = true;
+        if (current == root && task != null) {
+            // a task started at the top level of a task belongs to the call that started the outer task
+            return new AsyncContext(task.owner, task.parent, task.generation, task.suppressed || suppressed > 0);
         }
-        out.println();
-        out.flush();
+        return new AsyncContext(this, current, clears, suppressed > 0);
+    }
+
+    // attaches calls of tasks that have ended, only the recording thread does it
+    // because children of entries have a single writer
+    private void attachAsync() {
+        if (pendingAsync.isEmpty()) {
+            return;
+        }
+        AsyncCalls async;
+        while ((async = pendingAsync.poll()) != null) {
+            // the call that started the task is cleared already
+            if (async.generation != clears) {
+                if (METRICS.isEnabled()) {
+                    for (CallTreeEntry call : async.calls) {
+                        removed(call.subtreeIterator());
+                    }
+                }
+                continue;
+            }
+            for (CallTreeEntry call : async.calls) {
+                call.parent = async.parent;
+                call.enterEvent = ++events;
+                call.exitEvent = call.running ? Long.MAX_VALUE : events;
+                async.parent.children.add(call);
+            }
+            for (CallTreeEntry entry = async.parent; entry != null; entry = entry.parent) {
+                entry.subtreeHash = 0;
+            }
+        }
+        publishEvents();
+    }
+
+    /**
+     * @return true if there are no running calls
+     */
+    boolean isBalanced() {
+        return current == root;
+    }
+
+    public CallTreeSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Removes all recorded calls. Entries are kept and reused by the next calls, so a tree
+     * that is recorded, written and cleared over and over again doesn't produce garbage.
+     * Entries obtained from this tree before it was cleared must not be used after that.
+     *
+     * @throws IllegalStateException if there are running calls
+     */
+    public void clear() {
+        if (!isBalanced()) {
+            throw new IllegalStateException("tree can't be cleared while there are running calls");
+        }
+        // snapshots that are taken meanwhile are retried
+        clears++;
+        if (recycled == null) {
+            recycled = new ArrayList<>();
+        }
+        // recycled entries serve as a queue of entries which children are not recycled yet.
+        // children are copied one by one because addAll allocates a temporary array
+        int from = recycled.size();
+        long removed = 0;
+        long removedChars = 0;
+        CallTreeEntry entry = root;
+        while (entry != null) {
+            for (int i = 0; i < entry.children.size(); i++) {
+                recycled.add(entry.children.get(i));
+            }
+            if (entry == root) {
+                entry.recycleChildren();
+            } else {
+                if (entry.counted) {
+                    removed++;
+                    removedChars += ProfilerMetrics.chars(entry.args);
+                }
+                entry.recycle();
+            }
+            entry = from < recycled.size() ? recycled.get(from++) : null;
+        }
+        clears++;
+        if (METRICS.isEnabled()) {
+            METRICS.entriesRemoved(removed, removedChars);
+        }
+    }
+
+    // removes all calls like clear() but leaves entries as they are, because the root call listener may be reading them
+    private void forget() {
+        clears++;
+        if (METRICS.isEnabled()) {
+            removed(root.subtreeIterator());
+        }
+        root.recycleChildren();
+        clears++;
+    }
+
+    // only entries that were counted when they were recorded are removed from metrics,
+    // parsed and copied entries were never counted
+    private static void removed(Iterator<CallTreeEntry> entries) {
+        long removed = 0;
+        long removedChars = 0;
+        while (entries.hasNext()) {
+            CallTreeEntry entry = entries.next();
+            if (entry.counted) {
+                removed++;
+                removedChars += ProfilerMetrics.chars(entry.args);
+            }
+        }
+        METRICS.entriesRemoved(removed, removedChars);
+    }
+
+    /**
+     * Takes a snapshot of the tree, it can be done by any thread while the tree is being recorded.
+     * The snapshot contains calls that were made before some moment during this method,
+     * calls that were running at that moment are in the snapshot too but their time is unknown.
+     * Recording thread is never blocked, but the snapshot is taken again if the tree is cleared meanwhile.
+     * <p>
+     * If calls are aggregated, counts and times of the snapshot may include calls
+     * that ended while it was taken. Arguments stored with {@link ArgumentPolicy#lazy()} are never
+     * converted to strings by the snapshot, they are written as if they were not captured.
+     */
+    public CompactCallTree snapshot() {
+        while (true) {
+            int generation = clears;
+            if ((generation & 1) == 0) {
+                List<CompactCallTree> result = new ArrayList<>(1);
+                try {
+                    snapshot(publishedEvents, CompactCallTreeBuilder.into(result));
+                } catch (RuntimeException e) {
+                    // entries that were being recycled may be seen half-cleared
+                    if (clears == generation) {
+                        throw e;
+                    }
+                }
+                if (clears == generation) {
+                    return result.get(0);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    // passes entries entered before the given event to the visitor
+    private void snapshot(long lastEvent, CallTreeVisitor visitor) {
+        Deque<CallTreeEntry> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            CallTreeEntry entry = pending.pop();
+            long totalNanos = entry.exitEvent <= lastEvent ? entry.totalNanos : CallTreeEntry.UNKNOWN_TIME;
+            // lazy arguments are not converted here, their objects may be changing right now
+            Object[] rawArgs = entry.rawArgs;
+            String[] args = rawArgs != null ? ArgumentPolicy.droppedArgs(rawArgs.length) : entry.args;
+            if (entry.async) {
+                visitor.onAsyncEnter(entry.depth, entry.caller, entry.method, args, entry.calls,
+                        totalNanos, CallTreeEntry.UNKNOWN_TIME);
+            } else {
+                visitor.onEnter(entry.depth, entry.caller, entry.method, args, entry.calls,
+                        totalNanos, CallTreeEntry.UNKNOWN_TIME);
+            }
+            // children are added in order of calls, so calls made later are at the end
+            List<CallTreeEntry> children = entry.children;
+            int count = 0;
+            while (count < children.size() && children.get(count).enterEvent <= lastEvent) {
+                count++;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                pending.push(children.get(i));
+            }
+        }
+        visitor.onTreeEnd();
+    }
+
+    /**
+     * @return new tree containing copies of top level calls of all given trees in the given order
+     */
+    static CallTree concat(Iterable<CallTree> trees) {
+        CallTreeEntry root = new CallTreeEntry(0, null, null, null, null);
+        for (CallTree tree : trees) {
+            for (CallTreeEntry child : tree.getRoot().getChildren()) {
+                root.getChildren().add(child.copy(root));
+            }
+        }
+        return new CallTree(root);
     }
 
     public static List<CallTree> parse(File f) throws IOException {
-        InputStream is = new FileInputStream(f);
-        Scanner in = new Scanner(is);
         List<CallTree> data = new ArrayList<>();
-        Optional<CallTree> next;
-        while ((next = CallTreeParser.parseNext(in)).isPresent()) {
-            data.add(next.get());
-        }
-        in.close();
+        parse(f, CallTreeBuilder.into(data));
         return data;
     }
 
-    private Method findMethod(Method[] methods, String name, List<Class<?>> argsTypes) {
-        for (Method m : methods) {
-            if (m.getParameterCount() != argsTypes.size() || !Objects.equals(m.getName(), name)) {
-                continue;
+    /**
+     * Passes entries of all trees in the file to the visitor without building the trees.
+     * Files written by {@link CompressedTraceWriter} are recognized and inflated.
+     */
+    public static void parse(File f, CallTreeVisitor visitor) throws IOException {
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        if (CompressedTraceReader.isCompressed(f)) {
+            try (CompressedTraceReader reader = new CompressedTraceReader(f)) {
+                reader.accept(visitor);
             }
-            Class<?>[] params = m.getParameterTypes();
-            // even though there might be null args and we can't get their type tokens
-            // we still get no ambiguities here
-            // we also need unwrapping here because varargs in stepIn box primitives
-            if (IntStream.range(0, params.length)
-                    .allMatch(i -> argsTypes.get(i) == null || argsTypes.get(i).equals(Util.unwrap(params[i])))) {
-                return m;
+        } else {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), 1 << 16)) {
+                parse(in, visitor);
             }
         }
-        return null;
+        if (start != 0) {
+            METRICS.parsed(f.length(), System.nanoTime() - start);
+        }
     }
 
-    private void stepOut() {
-        current = current.getParent();
-        int size = current.getChildren().size();
-        hash = hash * current.getChildren().get(size - 1).hashCode() * size * 57;
+    public static void parse(BufferedReader in, CallTreeVisitor visitor) throws IOException {
+        new CallTreeParser(visitor).parse(in);
+    }
+
+    // calls of tasks are attached only if the tree is read by the thread that records it,
+    // other threads see them once the recording thread enters or exits a call
+    @Override
+    CallTreeEntry getRoot() {
+        if (Thread.currentThread() == recorder) {
+            attachAsync();
+        }
+        return root;
     }
 
     @Override
     public Iterator<CallTreeEntry> iterator() {
-        return new CallTreeIterator(root);
+        return new CallTreeIterator(getRoot());
     }
 
+    /**
+     * Splits on subtrees, so entries can be processed by parallel streams.
+     */
     @Override
-    public boolean equals(Object other) {
-        return other instanceof CallTree && equals((CallTree) other);
+    public Spliterator<CallTreeEntry> spliterator() {
+        // counting is much cheaper than almost any processing of entries
+        // and it lets streams decide when to stop splitting
+        long size = 0;
+        for (Iterator<CallTreeEntry> it = iterator(); it.hasNext(); it.next()) {
+            size++;
+        }
+        return new CallTreeSpliterator(root, size);
     }
 
-    private boolean equals(CallTree other) {
-        return root.deepEquals(other.root);
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        settings = new CallTreeSettings();
+        suppressedOverseer = new SuppressedOverseer(this);
+        transparentOverseer = new TransparentOverseer(this);
+        treeOverseer = new TreeOverseer(this);
+        pendingAsync = new ConcurrentLinkedQueue<>();
+        for (CallTreeEntry entry = current; entry != root; entry = entry.getParent()) {
+            entry.running = true;
+            entry.exitEvent = Long.MAX_VALUE;
+        }
     }
 
-    @Override
-    public int hashCode() {
-        return hash;
+    /**
+     * Returned by stepIn, closing it marks the end of the call.
+     */
+    public interface Overseer extends AutoCloseable {
+        @Override
+        void close();
     }
 
-    public String toString() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            write(baos);
-            return baos.toString();
-        } catch (IOException e) {
-            return "object is corrupted";
+    private static class SuppressedOverseer implements Overseer {
+        private final CallTree parent;
+
+        private SuppressedOverseer(CallTree parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void close() {
+            parent.suppressed--;
         }
     }
 
-    public class Overseer implements AutoCloseable {
+    private static class TransparentOverseer implements Overseer {
+        private final CallTree parent;
+
+        private TransparentOverseer(CallTree parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void close() {
+            parent.transparent--;
+        }
+    }
+
+    private static class TreeOverseer implements Overseer {
         private CallTree parent;
 
-        private Overseer(CallTree parent) {
+        private TreeOverseer(CallTree parent) {
             this.parent = parent;
         }
 
         @Override
         public void close() {
-            parent.stepOut();
+            long nanos = System.nanoTime();
+            parent.exit(nanos);
+            if (METRICS.isEnabled()) {
+                METRICS.stepOut(System.nanoTime() - nanos);
+            }
         }
     }
 
     // storing a tree is a bit more difficult than a linked list
     // however, getChildren method seems quite useful
-    public static class CallTreeEntry implements Serializable {
-        private final int depth;
-        private final Class<?> caller;
+    public static class CallTreeEntry implements AbstractCallTree.Entry, Serializable {
+        public static final long UNKNOWN_TIME = -1;
+
+        private int depth;
+        private Class<?> caller;
         private transient Method method;
         // we can't store objects here because there is no way to restore an object
         // from its toString(). serialization obviously wouldn't work because we
         // may want to pass arguments that are not serializable.
-        private final String[] args;
+        private String[] args;
+        // arguments that are not converted to strings yet, see ArgumentPolicy.lazy
+        private transient Object[] rawArgs;
+        private transient ArgumentPolicy policy;
 
-        private final List<CallTreeEntry> children = new ArrayList<>();
+        // nanoTime when the method was called, makes sense only within the same JVM
+        private long startNanos;
+        // negative while the method is running or if the time is unknown
+        private long totalNanos = UNKNOWN_TIME;
+        private long calls = 1;
+
+        private final ChildList children = new ChildList();
         private CallTreeEntry parent;
+        // children by method, built only when calls are aggregated
+        private transient Map<Method, CallTreeEntry> childrenByMethod;
+        // hash of the whole subtree, 0 if it is not known yet.
+        // it is kept only for entries that can't change, so it's not kept for the root and running entries
+        private transient int subtreeHash;
+        private transient boolean running;
+        // added to retained entries of metrics when it was recorded
+        private transient boolean counted;
+        // events of the tree when the entry was entered for the first time and exited for the last time,
+        // entries that were not recorded by this tree are considered to be entered and exited at the very start
+        private transient long enterEvent;
+        private transient long exitEvent;
+        // made by a task on another thread, see AsyncContext
+        private boolean async;
 
         CallTreeEntry(int depth, CallTreeEntry parent, Class<?> caller, Method method, String[] args) {
             this.depth = depth;
@@ -183,12 +594,157 @@ public class CallTree implements Serializable, Iterable<CallTree.CallTreeEntry>
             this.args = args;
         }
 
-        CallTreeEntry add(Class<?> caller, Method method, String[] args) {
-            CallTreeEntry child = new CallTreeEntry(depth + 1, this, caller, method, args);
+        /**
+         * @param recycled entries to reuse, may be null
+         */
+        CallTreeEntry add(Class<?> caller, Method method, Object[] args, ArgumentPolicy policy,
+                          ArrayList<CallTreeEntry> recycled) {
+            String[] rendered = policy.isLazy() ? null : policy.render(args);
+            CallTreeEntry child;
+            if (recycled == null || recycled.isEmpty()) {
+                child = new CallTreeEntry(depth + 1, this, caller, method, rendered);
+            } else {
+                child = recycled.remove(recycled.size() - 1);
+                child.depth = depth + 1;
+                child.parent = this;
+                child.caller = caller;
+                child.method = method;
+                child.args = rendered;
+            }
+            if (policy.isLazy()) {
+                child.rawArgs = args;
+                child.policy = policy;
+            }
+            // snapshots don't see the child until the tree publishes its enter event
+            child.enterEvent = Long.MAX_VALUE;
+            child.exitEvent = Long.MAX_VALUE;
             children.add(child);
             return child;
         }
 
+        // forgets everything about the entry, children should be recycled separately
+        private void recycle() {
+            caller = null;
+            method = null;
+            args = null;
+            rawArgs = null;
+            policy = null;
+            parent = null;
+            startNanos = 0;
+            totalNanos = UNKNOWN_TIME;
+            calls = 1;
+            running = false;
+            counted = false;
+            enterEvent = 0;
+            exitEvent = 0;
+            async = false;
+            recycleChildren();
+        }
+
+        // also used for the root, that keeps everything else
+        private void recycleChildren() {
+            // capacity of the list and the map is kept
+            children.clear();
+            if (childrenByMethod != null) {
+                childrenByMethod.clear();
+            }
+            subtreeHash = 0;
+        }
+
+        /**
+         * Same as add but reuses the child with the same method if there is one.
+         * Arguments of the first call are kept as a sample.
+         */
+        CallTreeEntry merge(Class<?> caller, Method method, Object[] args, ArgumentPolicy policy,
+                            ArrayList<CallTreeEntry> recycled) {
+            if (childrenByMethod == null) {
+                childrenByMethod = new HashMap<>();
+                // there may be children recorded before calls were aggregated
+                for (CallTreeEntry child : children) {
+                    childrenByMethod.putIfAbsent(child.method, child);
+                }
+            }
+            CallTreeEntry child = childrenByMethod.get(method);
+            if (child == null) {
+                child = add(caller, method, args, policy, recycled);
+                childrenByMethod.put(method, child);
+            } else {
+                child.calls++;
+            }
+            return child;
+        }
+
+        /**
+         * Adds calls of another tree to the child with the same method, see {@link TraceCollector}.
+         * Arguments and the async flag of the first merged calls are kept.
+         */
+        CallTreeEntry mergeCalls(Class<?> caller, Method method, String[] args, boolean async,
+                                 long calls, long totalNanos) {
+            if (childrenByMethod == null) {
+                childrenByMethod = new HashMap<>();
+                for (CallTreeEntry child : children) {
+                    childrenByMethod.putIfAbsent(child.method, child);
+                }
+            }
+            CallTreeEntry child = childrenByMethod.get(method);
+            if (child == null) {
+                child = new CallTreeEntry(depth + 1, this, caller, method, args);
+                child.calls = 0;
+                child.async = async;
+                children.add(child);
+                childrenByMethod.put(method, child);
+            }
+            child.calls += calls;
+            if (totalNanos >= 0) {
+                child.totalNanos = Math.max(child.totalNanos, 0) + totalNanos;
+            }
+            return child;
+        }
+
+        /**
+         * @return copy of this entry and all its callees attached to the given parent
+         */
+        CallTreeEntry copy(CallTreeEntry parent) {
+            CallTreeEntry result = copyData(parent);
+            // children that are not copied yet on every level of the current path
+            ArrayDeque<Iterator<CallTreeEntry>> pending = new ArrayDeque<>();
+            ArrayDeque<CallTreeEntry> copies = new ArrayDeque<>();
+            pending.push(getChildren().iterator());
+            copies.push(result);
+            while (!pending.isEmpty()) {
+                if (!pending.peek().hasNext()) {
+                    pending.pop();
+                    copies.pop();
+                    continue;
+                }
+                CallTreeEntry child = pending.peek().next();
+                CallTreeEntry copy = child.copyData(copies.peek());
+                copies.peek().children.add(copy);
+                pending.push(child.getChildren().iterator());
+                copies.push(copy);
+            }
+            return result;
+        }
+
+        private CallTreeEntry copyData(CallTreeEntry parent) {
+            // lazy arguments stay lazy
+            CallTreeEntry copy = new CallTreeEntry(getDepth(), parent, getCaller(), getMethod(),
+                    rawArgs == null ? renderedArgs() : args);
+            copy.rawArgs = rawArgs;
+            copy.policy = policy;
+            copy.startNanos = startNanos;
+            copy.totalNanos = getTotalTime();
+            copy.calls = getCalls();
+            copy.async = isAsync();
+            return copy;
+        }
+
+        void addChild(CallTreeEntry child) {
+            child.parent = this;
+            children.add(child);
+            subtreeHash = 0;
+        }
+
         CallTreeEntry getParent() {
             return parent;
         }
@@ -201,8 +757,26 @@ public class CallTree implements Serializable, Iterable<CallTree.CallTreeEntry>
             return method;
         }
 
+        /**
+         * @return arguments converted to strings, arguments that are not captured are returned as a copy
+         * because entries share them
+         */
         public String[] getArgs() {
-            return args;
+            String[] result = renderedArgs();
+            return ArgumentPolicy.isShared(result) ? result.clone() : result;
+        }
+
+        // same as getArgs() but shared arrays are not copied, so the result must not be changed
+        String[] renderedArgs() {
+            String[] result = args;
+            if (result == null && rawArgs != null) {
+                result = policy.render(rawArgs);
+                args = result;
+                if (counted && METRICS.isEnabled()) {
+                    METRICS.argumentsRendered(result);
+                }
+            }
+            return result;
         }
 
         public List<CallTreeEntry> getChildren() {
@@ -213,74 +787,452 @@ public class CallTree implements Serializable, Iterable<CallTree.CallTreeEntry>
             return depth;
         }
 
+        /**
+         * @return how many calls this entry represents, which is 1 unless calls are aggregated
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return time spent in the method including callees in nanoseconds,
+         * or {@link #UNKNOWN_TIME} if the method is still running.
+         * For aggregated calls it's the sum of times of all finished calls
+         */
+        public long getTotalTime() {
+            return totalNanos;
+        }
+
+        /**
+         * @return time spent in the method excluding callees in nanoseconds,
+         * or {@link #UNKNOWN_TIME} if the method is still running
+         */
+        public long getSelfTime() {
+            if (totalNanos < 0) {
+                return UNKNOWN_TIME;
+            }
+            long self = totalNanos;
+            for (CallTreeEntry child : getChildren()) {
+                // async calls run in parallel with this one
+                if (!child.isAsync()) {
+                    self -= Math.max(child.getTotalTime(), 0);
+                }
+            }
+            return self;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} when the method was called last time
+         */
+        public long getStartTime() {
+            return startNanos;
+        }
+
+        /**
+         * @return true if the call was made by a task that the parent call handed off to another thread,
+         * see {@link ConcurrentCallTree#wrap(Runnable)}. Time of async calls is not subtracted from
+         * self time of their parent. Like times, it's not taken into account by equals.
+         */
+        public boolean isAsync() {
+            return async;
+        }
+
+        void setAsync(boolean async) {
+            this.async = async;
+        }
+
+        void setTime(long calls, long totalNanos) {
+            this.calls = calls;
+            this.totalNanos = totalNanos;
+            subtreeHash = 0;
+        }
+
         private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
             in.defaultReadObject();
             try {
                 method = Util.getMethod(caller, (String) in.readObject(), (Class<?>[]) in.readObject());
             } catch (NoSuchMethodException e) {
                 System.err.println("unable to restore Method from method info during deserialization");
+                METRICS.resolutionFailed();
             }
         }
 
         private void writeObject(ObjectOutputStream out) throws IOException {
+            renderedArgs();
             out.defaultWriteObject();
             out.writeObject(method == null ? null : method.getName());
             out.writeObject(method == null ? null : method.getParameterTypes());
         }
 
-        // this checks only data equality
+        // this checks only data equality, entries of compact trees are compared in the same way
         @Override
         public boolean equals(Object other) {
-            return other instanceof CallTreeEntry && equals((CallTreeEntry) other);
+            return other instanceof AbstractCallTree.Entry && dataEquals(this, (AbstractCallTree.Entry) other);
         }
 
-        private boolean equals(CallTreeEntry other) {
-            return depth == other.depth && Objects.equals(caller, other.caller)
-                    && Objects.equals(method, other.method) && Arrays.deepEquals(args, other.args);
+        static boolean dataEquals(AbstractCallTree.Entry a, AbstractCallTree.Entry b) {
+            return a.getDepth() == b.getDepth() && a.getCalls() == b.getCalls()
+                    && Objects.equals(a.getCaller(), b.getCaller()) && Objects.equals(a.getMethod(), b.getMethod())
+                    && Arrays.deepEquals(argsOf(a), argsOf(b));
         }
 
-        private boolean deepEquals(CallTreeEntry other) {
-            boolean ok = equals(other) && getChildren().size() == other.getChildren().size();
-            if (!ok) {
-                return false;
+        // getArgs() copies arguments that are not captured, this is called on every exit and must not allocate
+        private static String[] argsOf(AbstractCallTree.Entry entry) {
+            return entry instanceof CallTreeEntry ? ((CallTreeEntry) entry).renderedArgs() : entry.getArgs();
+        }
+
+        // this hashes only data of the entry
+        @Override
+        public int hashCode() {
+            return dataHash(this);
+        }
+
+        static int dataHash(AbstractCallTree.Entry entry) {
+            int result = entry.getDepth();
+            result = 31 * result + Long.hashCode(entry.getCalls());
+            result = 31 * result + Objects.hashCode(entry.getCaller());
+            result = 31 * result + Objects.hashCode(entry.getMethod());
+            return result ^ Arrays.hashCode(argsOf(entry));
+        }
+
+        /**
+         * @return hash of data of this entry and all its callees, equal subtrees have equal hashes.
+         * It is cached for finished calls, so it usually takes constant time
+         */
+        public int getSubtreeHash() {
+            int cached = cachedSubtreeHash();
+            if (cached != 0) {
+                return cached;
+            }
+            // post-order walk over subtrees which hashes are not known yet
+            ArrayDeque<HashFrame> frames = new ArrayDeque<>();
+            frames.push(new HashFrame(this));
+            while (true) {
+                HashFrame frame = frames.peek();
+                if (frame.children.hasNext()) {
+                    CallTreeEntry child = frame.children.next();
+                    int hash = child.cachedSubtreeHash();
+                    if (hash != 0) {
+                        frame.hash = combineHash(frame.hash, hash);
+                    } else {
+                        frames.push(new HashFrame(child));
+                    }
+                    continue;
+                }
+                frames.pop();
+                int hash = finishHash(frame.hash);
+                CallTreeEntry entry = frame.entry;
+                if (entry.depth > 0 && !entry.running) {
+                    entry.subtreeHash = hash;
+                }
+                if (frames.isEmpty()) {
+                    return hash;
+                }
+                frames.peek().hash = combineHash(frames.peek().hash, hash);
             }
-            for (int i = 0; i < getChildren().size(); i++) {
-                ok &= getChildren().get(i).deepEquals(other.getChildren().get(i));
+        }
+
+        int cachedSubtreeHash() {
+            return subtreeHash;
+        }
+
+        // hash of the subtree if hashes of all children are known and lazy arguments are rendered, otherwise 0
+        private int hashFromChildren() {
+            if (args == null && rawArgs != null) {
+                return 0;
+            }
+            int hash = hashCode();
+            for (CallTreeEntry child : children) {
+                if (child.subtreeHash == 0) {
+                    return 0;
+                }
+                hash = combineHash(hash, child.subtreeHash);
             }
-            return ok;
+            return finishHash(hash);
         }
 
+        static int combineHash(int hash, int childHash) {
+            return 31 * hash + childHash;
+        }
+
+        // 0 is reserved for unknown hash
+        static int finishHash(int hash) {
+            return hash == 0 ? 1 : hash;
+        }
+
+        /**
+         * Compares whole subtrees. Subtree hashes are compared first,
+         * so subtrees are walked only if they are equal or hashes collide.
+         */
         @Override
-        public int hashCode() {
-            return Objects.hash(depth, caller, method) ^ Arrays.hashCode(args);
+        public boolean subtreeEquals(AbstractCallTree.Entry other) {
+            return subtreeEquals(this, other);
+        }
+
+        static boolean subtreeEquals(AbstractCallTree.Entry a, AbstractCallTree.Entry b) {
+            if (a.getSubtreeHash() != b.getSubtreeHash()) {
+                return false;
+            }
+            ArrayDeque<AbstractCallTree.Entry> pending = new ArrayDeque<>();
+            pending.push(a);
+            pending.push(b);
+            while (!pending.isEmpty()) {
+                AbstractCallTree.Entry y = pending.pop();
+                AbstractCallTree.Entry x = pending.pop();
+                if (!dataEquals(x, y) || x.getChildren().size() != y.getChildren().size()) {
+                    return false;
+                }
+                Iterator<? extends AbstractCallTree.Entry> yChildren = y.getChildren().iterator();
+                for (AbstractCallTree.Entry xChild : x.getChildren()) {
+                    AbstractCallTree.Entry yChild = yChildren.next();
+                    if (xChild.getSubtreeHash() != yChild.getSubtreeHash()) {
+                        return false;
+                    }
+                    pending.push(xChild);
+                    pending.push(yChild);
+                }
+            }
+            return true;
         }
 
         @Override
         public String toString() {
-            if (parent == null) {
-                return ROOT_IDENT;
-            } else {
-                StringBuilder sb = new StringBuilder();
-                sb.append(String.join("", Collections.nCopies(depth, "-")));
-                sb.append(caller.getName()).append('.').append(method.getName()).append('(');
-                Class<?>[] params = method.getParameterTypes();
-                String argsStr = IntStream.range(0, params.length)
-                        .mapToObj(i -> String.format("%s var%d = %s", params[i].getName(), i, args[i]))
-                        .collect(Collectors.joining(", "));
-                sb.append(argsStr).append(")");
-                return sb.toString();
+            StringBuilder sb = new StringBuilder();
+            format(sb);
+            return sb.toString();
+        }
+
+        void format(StringBuilder sb) {
+            format(sb, depth, isAsync(), caller, method, renderedArgs(), calls, totalNanos, getSelfTime());
+        }
+
+        /**
+         * Pre-order traversal of the subtree of this entry, starting with the entry itself.
+         */
+        Iterator<CallTreeEntry> subtreeIterator() {
+            return new CallTreeIterator(this);
+        }
+
+        static String format(int depth, Class<?> caller, Method method, String[] args,
+                             long calls, long totalNanos, long selfNanos) {
+            StringBuilder sb = new StringBuilder();
+            format(sb, depth, caller, method, args, calls, totalNanos, selfNanos);
+            return sb.toString();
+        }
+
+        /**
+         * Appends the line of the text format to the builder, so that it can be reused.
+         */
+        static void format(StringBuilder sb, int depth, Class<?> caller, Method method, String[] args,
+                           long calls, long totalNanos, long selfNanos) {
+            format(sb, depth, false, caller, method, args, calls, totalNanos, selfNanos);
+        }
+
+        /**
+         * @param async async calls are marked with {@link #ASYNC_MARK} after the depth
+         */
+        static void format(StringBuilder sb, int depth, boolean async, Class<?> caller, Method method,
+                           String[] args, long calls, long totalNanos, long selfNanos) {
+            if (depth == 0) {
+                sb.append(ROOT_IDENT);
+                return;
+            }
+            for (int i = 0; i < depth; i++) {
+                sb.append('-');
+            }
+            if (async) {
+                sb.append(ASYNC_MARK);
+            }
+            sb.append(caller.getName()).append('.').append(method.getName()).append('(');
+            Class<?>[] params = method.getParameterTypes();
+            for (int i = 0; i < params.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(params[i].getName()).append(" var").append(i).append(" = ").append(args[i]);
+            }
+            sb.append(')');
+            if (totalNanos >= 0) {
+                sb.append(" [");
+                if (calls != 1) {
+                    sb.append("calls ").append(calls).append(", ");
+                }
+                sb.append("total ").append(totalNanos).append(" ns, self ").append(selfNanos).append(" ns]");
+            }
+        }
+    }
+
+    /**
+     * Call that started a task on another thread, see {@link ConcurrentCallTree#wrap(Runnable)}.
+     * The task is recorded into a tree of its own, when it ends its calls are handed to the tree
+     * that recorded the call and become its async callees. Only the recording thread attaches them:
+     * the next time it enters a call, ends a top level call or reads its tree, so calls of tasks are
+     * in order of their ends. Other threads don't see calls of tasks until then.
+     * Calls of tasks that end after the call is cleared are dropped.
+     */
+    static final class AsyncContext {
+        private final CallTree owner;
+        private final CallTreeEntry parent;
+        private final int generation;
+        // the call was not recorded, so the task is not recorded either
+        private final boolean suppressed;
+
+        private AsyncContext(CallTree owner, CallTreeEntry parent, int generation, boolean suppressed) {
+            this.owner = owner;
+            this.parent = parent;
+            this.generation = generation;
+            this.suppressed = suppressed;
+        }
+
+        /**
+         * @return tree that records the task on the current thread
+         */
+        CallTree start() {
+            CallTree tree = new CallTree(owner.settings, parent.depth);
+            tree.task = this;
+            if (suppressed) {
+                tree.suppressed = 1;
+            }
+            return tree;
+        }
+
+        /**
+         * Hands calls of the task recorded into the given tree to the tree of the call that started it.
+         */
+        void finish(CallTree tree) {
+            synchronized (tree) {
+                // tasks started by the task that ended before it
+                tree.attachAsync();
+                // tasks that end later go straight to the tree of the call that started this task
+                tree.handedOver = true;
+            }
+            List<CallTreeEntry> calls = new ArrayList<>(tree.root.children);
+            if (calls.isEmpty()) {
+                return;
+            }
+            for (CallTreeEntry call : calls) {
+                call.async = true;
+                // events of the task mean nothing in the other tree, attached calls are entered
+                // and exited at once, calls that are still running are left running
+                for (Iterator<CallTreeEntry> it = call.subtreeIterator(); it.hasNext(); ) {
+                    CallTreeEntry entry = it.next();
+                    entry.enterEvent = 0;
+                    entry.exitEvent = entry.running ? Long.MAX_VALUE : 0;
+                }
+            }
+            CallTree target = owner;
+            int targetGeneration = generation;
+            while (true) {
+                synchronized (target) {
+                    if (!target.handedOver) {
+                        target.pendingAsync.add(new AsyncCalls(parent, calls, targetGeneration));
+                        return;
+                    }
+                    // the call that started this task belongs to a task that has ended already
+                    targetGeneration = target.task.generation;
+                    target = target.task.owner;
+                }
+            }
+        }
+    }
+
+    // calls of a task that are waiting to be attached to the call that started it
+    private static class AsyncCalls {
+        private final CallTreeEntry parent;
+        private final List<CallTreeEntry> calls;
+        private final int generation;
+
+        private AsyncCalls(CallTreeEntry parent, List<CallTreeEntry> calls, int generation) {
+            this.parent = parent;
+            this.calls = calls;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * List of children that can be read by other threads while it grows.
+     * Elements are written before the size is, so readers see only elements that are fully added.
+     */
+    private static class ChildList extends AbstractList<CallTreeEntry> implements RandomAccess, Serializable {
+        private static final AtomicIntegerFieldUpdater<ChildList> SIZE =
+                AtomicIntegerFieldUpdater.newUpdater(ChildList.class, "size");
+
+        private transient volatile CallTreeEntry[] elements = new CallTreeEntry[4];
+        private volatile int size;
+
+        @Override
+        public CallTreeEntry get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            }
+            return elements[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean add(CallTreeEntry entry) {
+            CallTreeEntry[] array = elements;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, size * 2);
+                elements = array;
+            }
+            array[size] = entry;
+            SIZE.lazySet(this, size + 1);
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            CallTreeEntry[] array = elements;
+            int n = size;
+            SIZE.lazySet(this, 0);
+            Arrays.fill(array, 0, n, null);
+            modCount++;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            for (int i = 0; i < size; i++) {
+                out.writeObject(elements[i]);
             }
         }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            elements = new CallTreeEntry[Math.max(size, 4)];
+            for (int i = 0; i < size; i++) {
+                elements[i] = (CallTreeEntry) in.readObject();
+            }
+        }
+    }
+
+    private static class HashFrame {
+        private final CallTreeEntry entry;
+        private final Iterator<CallTreeEntry> children;
+        private int hash;
+
+        HashFrame(CallTreeEntry entry) {
+            this.entry = entry;
+            this.children = entry.getChildren().iterator();
+            this.hash = entry.hashCode();
+        }
     }
 
+    // pre-order traversal of a subtree, indices[i] is the index of the next child to visit
+    // on the i-th level below the root of the subtree
     private static class CallTreeIterator implements Iterator<CallTreeEntry> {
         private CallTreeEntry curr;
-        private Stack<Integer> indices;
+        private int[] indices = new int[16];
+        private int size;
 
         CallTreeIterator(CallTreeEntry root) {
             curr = root;
-            indices = new Stack<>();
-            indices.push(0);
+            size = 1;
         }
 
         @Override
@@ -290,122 +1242,295 @@ public class CallTree implements Serializable, Iterable<CallTree.CallTreeEntry>
 
         @Override
         public CallTreeEntry next() {
+            if (curr == null) {
+                throw new NoSuchElementException();
+            }
             CallTreeEntry next = curr;
-            while (indices.size() != 0 && indices.peek() == curr.getChildren().size()) {
-                indices.pop();
+            while (size != 0 && indices[size - 1] == curr.getChildren().size()) {
+                size--;
                 curr = curr.getParent();
             }
-            if (indices.size() == 0) {
+            if (size == 0) {
                 curr = null;
             } else {
-                curr = curr.getChildren().get(indices.peek());
-                indices.push(indices.pop() + 1);
-                indices.push(0);
+                curr = curr.getChildren().get(indices[size - 1]++);
+                if (size == indices.length) {
+                    indices = Arrays.copyOf(indices, size * 2);
+                }
+                indices[size++] = 0;
             }
-
             return next;
         }
     }
 
-    // Code here is quite ugly because parsing a human-readable file usually is not much fun
-    // but readability is worth it.
-    private static class CallTreeParser {
-        static Optional<CallTree> parseNext(Scanner in) {
-            List<String> data = readData(in);
-            if (data.size() == 0) {
-                return Optional.empty();
-            }
-            List<CallTreeEntry> entries = data.stream()
-                    .map(CallTreeParser::parseEntry)
-                    .collect(Collectors.toList());
-            if (entries.contains(null)) {
-                System.err.println("error in parser, probably file is corrupted or some classes are missing");
-                return Optional.empty();
-            }
-            Stack<CallTreeEntry> stack = new Stack<>();
-            for (CallTreeEntry entry : entries) {
-                if (stack.size() == 0) {
-                    stack.push(entry);
-                    continue;
+    // pre-order traversal that splits off subtrees which come first
+    private static class CallTreeSpliterator implements Spliterator<CallTreeEntry> {
+        // entry that is visited first without its children
+        private CallTreeEntry head;
+        // roots of subtrees that are visited after the head, in order
+        private final ArrayDeque<CallTreeEntry> pending;
+        private long estimatedSize;
+
+        CallTreeSpliterator(CallTreeEntry root, long size) {
+            pending = new ArrayDeque<>();
+            pending.add(root);
+            estimatedSize = size;
+        }
+
+        private CallTreeSpliterator(CallTreeEntry head, ArrayDeque<CallTreeEntry> pending, long estimatedSize) {
+            this.head = head;
+            this.pending = pending;
+            this.estimatedSize = estimatedSize;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super CallTreeEntry> action) {
+            CallTreeEntry next = head;
+            head = null;
+            if (next == null) {
+                next = pending.pollFirst();
+                if (next == null) {
+                    return false;
                 }
-                while (stack.size() > entry.depth) {
-                    stack.pop();
+                List<CallTreeEntry> children = next.getChildren();
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    pending.addFirst(children.get(i));
                 }
-                CallTreeEntry curr = stack.peek();
-                curr.getChildren().add(entry);
-                entry.parent = curr;
-                stack.push(entry);
             }
-            return Optional.of(new CallTree(entries.get(0)));
+            action.accept(next);
+            return true;
+        }
+
+        @Override
+        public Spliterator<CallTreeEntry> trySplit() {
+            if (head == null && pending.size() == 1) {
+                head = pending.pollFirst();
+                pending.addAll(head.getChildren());
+            }
+            int half = pending.size() / 2;
+            if (head == null && half == 0) {
+                return null;
+            }
+            ArrayDeque<CallTreeEntry> prefix = new ArrayDeque<>(half);
+            for (int i = 0; i < half; i++) {
+                prefix.addLast(pending.pollFirst());
+            }
+            // subtree sizes are unknown, so we assume they are even
+            estimatedSize /= 2;
+            CallTreeSpliterator result = new CallTreeSpliterator(head, prefix, estimatedSize);
+            head = null;
+            return result;
         }
 
-        private static List<String> readData(Scanner in) {
-            List<String> data = new ArrayList<>();
+        @Override
+        public long estimateSize() {
+            return estimatedSize;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    // Code here is quite ugly because parsing a human-readable file usually is not much fun
+    // but readability is worth it.
+    // Lines are parsed one by one, so only classes and methods are kept in memory
+    // and they are looked up only once per file.
+    private static class CallTreeParser {
+        private static final String PARAMS_SEPARATOR = ", ";
+
+        private final CallTreeVisitor visitor;
+        private final Map<String, Class<?>> classes = new HashMap<>();
+        private final Map<String, Method> methods = new HashMap<>();
+
+        CallTreeParser(CallTreeVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        void parse(BufferedReader in) throws IOException {
+            boolean inTree = false;
             String line;
-            // caret return is a separator between different call trees in one file
-            // which is quite bad but it is done that way for sake of readability
-            while (in.hasNextLine() && !Objects.equals(line = in.nextLine(), "")) {
-                data.add(line);
+            while ((line = in.readLine()) != null) {
+                // caret return is a separator between different call trees in one file
+                // which is quite bad but it is done that way for sake of readability
+                if (line.isEmpty()) {
+                    if (inTree) {
+                        visitor.onTreeEnd();
+                    }
+                    inTree = false;
+                } else if (parseEntry(line)) {
+                    inTree = true;
+                } else {
+                    System.err.println("error in parser, probably file is corrupted or some classes are missing");
+                    return;
+                }
+            }
+            if (inTree) {
+                visitor.onTreeEnd();
             }
-            return data;
         }
 
-        private static CallTreeEntry parseEntry(String s) {
+        private boolean parseEntry(String s) {
             if (s.equals(ROOT_IDENT)) {
-                return new CallTreeEntry(0, null, null, null, null);
+                visitor.onEnter(0, null, null, null, 1, CallTreeEntry.UNKNOWN_TIME, CallTreeEntry.UNKNOWN_TIME);
+                return true;
             }
-            int p = 0;
-            while (s.charAt(p) == '-') {
-                p++;
+            int depth = 0;
+            while (depth < s.length() && s.charAt(depth) == '-') {
+                depth++;
             }
-            int depth = p;
-            s = s.substring(p);
+            boolean async = depth < s.length() && s.charAt(depth) == ASYNC_MARK;
+            int nameStart = async ? depth + 1 : depth;
             // seems like regex will make that even less readable
-            String semantics = s.substring(0, s.indexOf('('));
-            String callerName = semantics.substring(0, semantics.lastIndexOf('.'));
-            Class<?> caller;
+            int open = s.indexOf('(', nameStart);
+            int close = s.lastIndexOf(')');
+            int dot = open < 0 ? -1 : s.lastIndexOf('.', open);
+            if (dot <= nameStart || close < open) {
+                return false;
+            }
+            Class<?> caller = loadClass(s.substring(nameStart, dot));
+            if (caller == null) {
+                return false;
+            }
+            List<String> params = splitParams(s.substring(open + 1, close));
+            if (params == null) {
+                return false;
+            }
+            String[] paramsTypes = new String[params.size() / 2];
+            String[] args = new String[params.size() / 2];
+            for (int i = 0; i < args.length; i++) {
+                paramsTypes[i] = params.get(2 * i);
+                args[i] = params.get(2 * i + 1);
+            }
+            Method method = findMethod(caller, s.substring(dot + 1, open), paramsTypes);
+            long[] time = parseTime(s.substring(close + 1));
+            if (time == null) {
+                return false;
+            }
+            if (async) {
+                visitor.onAsyncEnter(depth, caller, method, args, time[0], time[1], time[2]);
+            } else {
+                visitor.onEnter(depth, caller, method, args, time[0], time[1], time[2]);
+            }
+            return true;
+        }
+
+        // " [calls 3, total 100 ns, self 20 ns]", calls are omitted if there is only one
+        // and the whole thing is omitted if the time is unknown
+        private static long[] parseTime(String s) {
+            long[] time = {1, CallTreeEntry.UNKNOWN_TIME, CallTreeEntry.UNKNOWN_TIME};
+            if (s.isEmpty()) {
+                return time;
+            }
+            if (!s.startsWith(" [") || !s.endsWith("]")) {
+                return null;
+            }
+            List<String> parts = split(s.substring(2, s.length() - 1));
             try {
-                caller = Class.forName(callerName);
-            } catch (ClassNotFoundException e) {
-                System.err.println("parser: unable to load class: " + e.getMessage());
+                for (String part : parts) {
+                    String[] keyValue = part.split(" ");
+                    long value = Long.parseLong(keyValue[1]);
+                    switch (keyValue[0]) {
+                        case "calls":
+                            time[0] = value;
+                            break;
+                        case "total":
+                            time[1] = value;
+                            break;
+                        case "self":
+                            time[2] = value;
+                            break;
+                        default:
+                            return null;
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
                 return null;
             }
-            String methodName = semantics.substring(semantics.lastIndexOf('.') + 1);
-            String paramsStr = s.substring(s.indexOf('(') + 1, s.length() - 1);
-            MethodInfo methodInfo = parseMethod(caller, methodName, paramsStr);
-            return new CallTreeEntry(depth, null, caller, methodInfo.method, methodInfo.args);
+            return time;
         }
 
-        private static MethodInfo parseMethod(Class<?> caller, String name, String paramsStr) {
-            String[] params = paramsStr.equals("") ? new String[0] : paramsStr.split(", ");
-            Class<?>[] paramsTypes = new Class<?>[params.length];
-            String[] args = new String[params.length];
-            IntStream.range(0, params.length).forEach(i -> {
-                String argTypeName = params[i].substring(0, params[i].indexOf(' '));
-                try {
-                    paramsTypes[i] = Util.forName(argTypeName);
-                } catch (ClassNotFoundException e) {
-                    System.err.println("Unable to load class: " + e.getMessage());
-                }
-                args[i] = params[i].substring(params[i].indexOf('=') + 2, params[i].length());
-            });
+        private Method findMethod(Class<?> caller, String name, String[] paramsTypes) {
+            String key = caller.getName() + '.' + name + '(' + String.join(",", paramsTypes) + ')';
+            if (methods.containsKey(key)) {
+                return methods.get(key);
+            }
+            Class<?>[] params = new Class<?>[paramsTypes.length];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = loadClass(paramsTypes[i]);
+            }
             Method method = null;
             try {
-                method = caller.getDeclaredMethod(name, paramsTypes);
+                method = caller.getDeclaredMethod(name, params);
             } catch (NoSuchMethodException e) {
                 System.err.println("Unable to find method: " + e.getMessage());
+                METRICS.resolutionFailed();
             }
-            return new MethodInfo(method, args);
+            methods.put(key, method);
+            return method;
         }
 
-        private static class MethodInfo {
-            Method method;
-            String[] args;
+        private Class<?> loadClass(String name) {
+            if (classes.containsKey(name)) {
+                return classes.get(name);
+            }
+            Class<?> result = null;
+            try {
+                result = Util.forName(name);
+            } catch (ClassNotFoundException e) {
+                System.err.println("parser: unable to load class: " + e.getMessage());
+                METRICS.resolutionFailed();
+            }
+            classes.put(name, result);
+            return result;
+        }
+
+        // String.split would compile a regex for every line
+        // "type var0 = value, type var1 = value", values may contain ", " themselves,
+        // so a parameter starts only where the name of the next variable follows the separator.
+        // returns types and values one after another, null if the string is malformed
+        private static List<String> splitParams(String s) {
+            List<String> result = new ArrayList<>();
+            int from = 0;
+            for (int i = 0; from < s.length(); i++) {
+                String name = " var" + i + " = ";
+                int nameStart = s.indexOf(name, from);
+                if (nameStart <= from || s.lastIndexOf(' ', nameStart - 1) >= from) {
+                    return null;
+                }
+                result.add(s.substring(from, nameStart));
+                int valueStart = nameStart + name.length();
+                int valueEnd = s.length();
+                String nextName = " var" + (i + 1) + " = ";
+                for (int next = s.indexOf(nextName, valueStart); next >= 0; next = s.indexOf(nextName, next + 1)) {
+                    int separator = s.lastIndexOf(PARAMS_SEPARATOR, next);
+                    // the type of the next parameter has no spaces
+                    if (separator >= valueStart && separator + PARAMS_SEPARATOR.length() < next
+                            && s.lastIndexOf(' ', next - 1) < separator + PARAMS_SEPARATOR.length()) {
+                        valueEnd = separator;
+                        break;
+                    }
+                }
+                result.add(s.substring(valueStart, valueEnd));
+                from = valueEnd == s.length() ? valueEnd : valueEnd + PARAMS_SEPARATOR.length();
+            }
+            return result;
+        }
 
-            MethodInfo(Method method, String[] args) {
-                this.method = method;
-                this.args = args;
+        private static List<String> split(String paramsStr) {
+            List<String> params = new ArrayList<>();
+            if (paramsStr.isEmpty()) {
+                return params;
+            }
+            int from = 0;
+            int next;
+            while ((next = paramsStr.indexOf(PARAMS_SEPARATOR, from)) >= 0) {
+                params.add(paramsStr.substring(from, next));
+                from = next + PARAMS_SEPARATOR.length();
             }
+            params.add(paramsStr.substring(from));
+            return params;
         }
     }
 }
@@ -0,0 +1,72 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Builds call trees from visited entries. A tree that doesn't start with the root gets a root
+ * with unknown time, and an entry without a parent is attached to the deepest one, see {@link EntryPath}.
+ */
+public class CallTreeBuilder implements CallTreeVisitor {
+    private final Consumer<CallTree> consumer;
+    private final EntryPath<CallTree.CallTreeEntry> path = new EntryPath<>(this::impliedRoot);
+    private CallTree.CallTreeEntry root;
+
+    /**
+     * @param consumer receives every tree as soon as it is built
+     */
+    public CallTreeBuilder(Consumer<CallTree> consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * @return builder that adds trees to the given list
+     */
+    public static CallTreeBuilder into(List<CallTree> trees) {
+        return new CallTreeBuilder(trees::add);
+    }
+
+    @Override
+    public void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                        long calls, long totalNanos, long selfNanos) {
+        add(new CallTree.CallTreeEntry(depth, null, caller, method, args), depth, calls, totalNanos);
+    }
+
+    @Override
+    public void onAsyncEnter(int depth, Class<?> caller, Method method, String[] args,
+                             long calls, long totalNanos, long selfNanos) {
+        CallTree.CallTreeEntry entry = new CallTree.CallTreeEntry(depth, null, caller, method, args);
+        entry.setAsync(true);
+        add(entry, depth, calls, totalNanos);
+    }
+
+    private void add(CallTree.CallTreeEntry entry, int depth, long calls, long totalNanos) {
+        // self time is computed from children
+        entry.setTime(calls, totalNanos);
+        if (depth == 0) {
+            // a root without an empty line before it starts the next tree
+            onTreeEnd();
+            root = entry;
+            path.start(entry);
+            return;
+        }
+        path.parent(depth).addChild(entry);
+        path.push(entry);
+    }
+
+    private CallTree.CallTreeEntry impliedRoot() {
+        root = new CallTree.CallTreeEntry(0, null, null, null, null);
+        root.setTime(1, CallTree.CallTreeEntry.UNKNOWN_TIME);
+        return root;
+    }
+
+    @Override
+    public void onTreeEnd() {
+        if (root != null) {
+            consumer.accept(new CallTree(root));
+        }
+        root = null;
+        path.clear();
+    }
+}
@@ -0,0 +1,306 @@
+package org.jetbrains.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * Compares calls of a baseline run with calls of the current one. Calls are aligned by their paths,
+ * methods from the top level call down to the call itself, and counts and times of all calls
+ * of every path are compared. Arguments and threads are not taken into account.
+ * <p>
+ * Paths are kept as a trie with hashed children, trees are visited once and every entry costs
+ * a single lookup, so large traces can be compared without building their trees,
+ * see {@link #compare(File, File)}. Memory grows with the amount of distinct paths.
+ * Entries with unknown time are counted as if they took no time.
+ * <pre>
+ * <code>java -cp out org.jetbrains.test.CallTreeDiff baseline.txt current.txt 10</code></pre>
+ */
+public class CallTreeDiff {
+    private final PathDiff root = new PathDiff(null, null);
+    // in order of the first call
+    private final List<PathDiff> paths = new ArrayList<>();
+
+    private CallTreeDiff() {
+    }
+
+    public CallTreeDiff(AbstractCallTree<?> baseline, AbstractCallTree<?> current) {
+        this(Collections.singletonList(baseline), Collections.singletonList(current));
+    }
+
+    public CallTreeDiff(Iterable<? extends AbstractCallTree<?>> baseline, Iterable<? extends AbstractCallTree<?>> current) {
+        CallTreeVisitor baselineVisitor = new PathVisitor(false);
+        for (AbstractCallTree<?> tree : baseline) {
+            tree.accept(baselineVisitor);
+        }
+        CallTreeVisitor currentVisitor = new PathVisitor(true);
+        for (AbstractCallTree<?> tree : current) {
+            tree.accept(currentVisitor);
+        }
+    }
+
+    /**
+     * Compares all trees of the files, trees are not kept in memory.
+     */
+    public static CallTreeDiff compare(File baseline, File current) throws IOException {
+        CallTreeDiff diff = new CallTreeDiff();
+        CallTree.parse(baseline, diff.new PathVisitor(false));
+        CallTree.parse(current, diff.new PathVisitor(true));
+        return diff;
+    }
+
+    /**
+     * Prints the largest changes between two files, arguments are the baseline,
+     * the current file and optionally the amount of paths in every section, 10 by default.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("usage: CallTreeDiff baseline current [paths]");
+            return;
+        }
+        CallTreeDiff diff;
+        try {
+            diff = compare(new File(args[0]), new File(args[1]));
+        } catch (IOException e) {
+            System.err.println("unable to read call trees: " + e.getMessage());
+            return;
+        }
+        int n = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        System.out.println("slower by self time:");
+        diff.topRegressions(n).forEach(System.out::println);
+        System.out.println("faster by self time:");
+        diff.topImprovements(n).forEach(System.out::println);
+        System.out.println("new paths by total time:");
+        diff.topAppeared(n).forEach(System.out::println);
+        System.out.println("vanished paths by total time:");
+        diff.topVanished(n).forEach(System.out::println);
+    }
+
+    /**
+     * @return all paths called in any of the runs
+     */
+    public List<PathDiff> getPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * @param path methods from the top level call to the call itself
+     * @return null if the path was called in none of the runs
+     */
+    public PathDiff get(List<Method> path) {
+        PathDiff result = root;
+        for (Method method : path) {
+            result = result.children == null ? null : result.children.get(method);
+            if (result == null) {
+                return null;
+            }
+        }
+        return result == root ? null : result;
+    }
+
+    /**
+     * @return at most n paths with the largest positive key in descending order
+     */
+    public List<PathDiff> top(int n, ToLongFunction<PathDiff> key) {
+        Comparator<PathDiff> order = Comparator.comparingLong(key);
+        PriorityQueue<PathDiff> top = new PriorityQueue<>(order);
+        for (PathDiff p : paths) {
+            if (key.applyAsLong(p) <= 0) {
+                continue;
+            }
+            if (top.size() < n) {
+                top.add(p);
+            } else if (n > 0 && order.compare(p, top.peek()) > 0) {
+                top.poll();
+                top.add(p);
+            }
+        }
+        List<PathDiff> result = new ArrayList<>(top);
+        result.sort(order.reversed());
+        return result;
+    }
+
+    /**
+     * @return paths which self time has grown the most
+     */
+    public List<PathDiff> topRegressions(int n) {
+        return top(n, PathDiff::getSelfTimeDelta);
+    }
+
+    /**
+     * @return paths which self time has dropped the most
+     */
+    public List<PathDiff> topImprovements(int n) {
+        return top(n, p -> -p.getSelfTimeDelta());
+    }
+
+    /**
+     * @return paths that are called only in the current run with the largest total time,
+     * callees of such paths are not included because they are new too
+     */
+    public List<PathDiff> topAppeared(int n) {
+        return top(n, p -> p.isAppeared() && !p.parent.isAppeared() ? p.currentTotalTime : 0);
+    }
+
+    /**
+     * @return paths that are called only in the baseline run with the largest total time,
+     * callees of such paths are not included
+     */
+    public List<PathDiff> topVanished(int n) {
+        return top(n, p -> p.isVanished() && !p.parent.isVanished() ? p.baselineTotalTime : 0);
+    }
+
+    // adds visited entries to paths of one of the runs
+    private class PathVisitor implements CallTreeVisitor {
+        private final boolean current;
+        private final EntryPath<PathDiff> path = new EntryPath<>(() -> root);
+
+        PathVisitor(boolean current) {
+            this.current = current;
+        }
+
+        @Override
+        public void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                            long calls, long totalNanos, long selfNanos) {
+            if (depth == 0) {
+                path.start(root);
+                return;
+            }
+            PathDiff parent = path.parent(depth);
+            if (parent.children == null) {
+                parent.children = new HashMap<>();
+            }
+            PathDiff p = parent.children.get(method);
+            if (p == null) {
+                p = new PathDiff(parent, method);
+                parent.children.put(method, p);
+                paths.add(p);
+            }
+            if (current) {
+                p.currentCalls += calls;
+                p.currentTotalTime += Math.max(totalNanos, 0);
+                p.currentSelfTime += Math.max(selfNanos, 0);
+            } else {
+                p.baselineCalls += calls;
+                p.baselineTotalTime += Math.max(totalNanos, 0);
+                p.baselineSelfTime += Math.max(selfNanos, 0);
+            }
+            path.push(p);
+        }
+
+        @Override
+        public void onTreeEnd() {
+            path.clear();
+        }
+    }
+
+    /**
+     * Calls of one path in both runs, times are in nanoseconds.
+     */
+    public static class PathDiff {
+        private final PathDiff parent;
+        private final Method method;
+        private final int depth;
+        private Map<Method, PathDiff> children;
+        private long baselineCalls;
+        private long baselineTotalTime;
+        private long baselineSelfTime;
+        private long currentCalls;
+        private long currentTotalTime;
+        private long currentSelfTime;
+
+        PathDiff(PathDiff parent, Method method) {
+            this.parent = parent;
+            this.method = method;
+            depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        /**
+         * @return the last method of the path, null if the method is not known
+         */
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * @return methods from the top level call to the call itself
+         */
+        public List<Method> getPath() {
+            Method[] result = new Method[depth];
+            for (PathDiff p = this; p.depth > 0; p = p.parent) {
+                result[p.depth - 1] = p.method;
+            }
+            return Arrays.asList(result);
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getBaselineCalls() {
+            return baselineCalls;
+        }
+
+        public long getCurrentCalls() {
+            return currentCalls;
+        }
+
+        public long getCallsDelta() {
+            return currentCalls - baselineCalls;
+        }
+
+        public long getBaselineTotalTime() {
+            return baselineTotalTime;
+        }
+
+        public long getCurrentTotalTime() {
+            return currentTotalTime;
+        }
+
+        public long getTotalTimeDelta() {
+            return currentTotalTime - baselineTotalTime;
+        }
+
+        public long getBaselineSelfTime() {
+            return baselineSelfTime;
+        }
+
+        public long getCurrentSelfTime() {
+            return currentSelfTime;
+        }
+
+        public long getSelfTimeDelta() {
+            return currentSelfTime - baselineSelfTime;
+        }
+
+        /**
+         * @return true if the path is called only in the current run
+         */
+        public boolean isAppeared() {
+            return depth > 0 && baselineCalls == 0;
+        }
+
+        /**
+         * @return true if the path is called only in the baseline run
+         */
+        public boolean isVanished() {
+            return depth > 0 && currentCalls == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Method m : getPath()) {
+                if (sb.length() > 0) {
+                    sb.append(" > ");
+                }
+                sb.append(m == null ? "unknown" : m.getDeclaringClass().getName() + '.' + m.getName());
+            }
+            return sb.append(String.format(" [calls %d -> %d, total %d -> %d ns (%+d), self %d -> %d ns (%+d)]",
+                    baselineCalls, currentCalls, baselineTotalTime, currentTotalTime, getTotalTimeDelta(),
+                    baselineSelfTime, currentSelfTime, getSelfTimeDelta())).toString();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.jetbrains.test;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor that records calls of its tasks as async callees of calls that submit them,
+ * see {@link ConcurrentCallTree#wrap(ExecutorService)}.
+ */
+class CallTreeExecutorService extends AbstractExecutorService {
+    private final ConcurrentCallTree tree;
+    private final ExecutorService executor;
+
+    CallTreeExecutorService(ConcurrentCallTree tree, ExecutorService executor) {
+        this.tree = tree;
+        this.executor = executor;
+    }
+
+    // all submit and invoke methods end up here
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(tree.wrap(command));
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return wrapped tasks that never started
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        return executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return "call tree recording " + executor;
+    }
+}
@@ -0,0 +1,260 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * Queries over recorded or parsed call trees. Trees are walked once when the index is built,
+ * so queries don't scan the trees again.
+ * <p>
+ * Total time of a method counts only the outermost of its recursive calls,
+ * so it never exceeds the time actually spent in the method.
+ * Entries with unknown time are counted as if they took no time.
+ * Entries which method is not known are not indexed.
+ * <p>
+ * Distinct call paths are interned into a trie while the trees are walked,
+ * so paths of a method are known without walking up from its entries.
+ */
+public class CallTreeIndex {
+    private final Map<Method, MethodStats> stats = new HashMap<>();
+    private final Map<Method, List<AbstractCallTree.Entry>> entries = new HashMap<>();
+    // top level calls are children of the root
+    private final PathNode root = new PathNode(null, null);
+    // distinct paths that end with the method in order of the first call
+    private final Map<Method, List<PathNode>> paths = new HashMap<>();
+    private final Map<Method, Map<Method, Long>> callers = new HashMap<>();
+    private final Map<Method, Map<Method, Long>> callees = new HashMap<>();
+    // calls by depth
+    private long[] depths = new long[16];
+    private int maxDepth;
+
+    public CallTreeIndex(AbstractCallTree<?> tree) {
+        this(Collections.singletonList(tree));
+    }
+
+    public CallTreeIndex(Iterable<? extends AbstractCallTree<?>> trees) {
+        for (AbstractCallTree<?> tree : trees) {
+            add(tree);
+        }
+    }
+
+    private void add(AbstractCallTree<?> tree) {
+        // nodes of the current path, index is depth - 1
+        List<PathNode> path = new ArrayList<>();
+        // how many times every method is on the current path
+        Map<Method, Integer> onPath = new HashMap<>();
+        for (AbstractCallTree.Entry entry : tree) {
+            int depth = entry.getDepth();
+            if (depth == 0) {
+                continue;
+            }
+            while (path.size() >= depth) {
+                Method removed = path.remove(path.size() - 1).method;
+                // unknown methods are not counted
+                if (removed != null) {
+                    onPath.merge(removed, -1, (a, b) -> a + b == 0 ? null : a + b);
+                }
+            }
+            Method method = entry.getMethod();
+            PathNode parent = path.isEmpty() ? root : path.get(path.size() - 1);
+            Method caller = parent.method;
+            PathNode node = parent.child(method);
+            path.add(node);
+            if (method == null) {
+                continue;
+            }
+            if (node.path == null) {
+                paths.computeIfAbsent(method, m -> new ArrayList<>()).add(node);
+                // paths of indexed nodes are built right away, so that queries don't walk the trie
+                node.getPath();
+            }
+            long calls = entry.getCalls();
+            node.calls += calls;
+            MethodStats methodStats = stats.computeIfAbsent(method, MethodStats::new);
+            methodStats.calls += calls;
+            methodStats.entries++;
+            methodStats.selfTime += Math.max(entry.getSelfTime(), 0);
+            if (!onPath.containsKey(method)) {
+                methodStats.totalTime += Math.max(entry.getTotalTime(), 0);
+            }
+            onPath.merge(method, 1, Integer::sum);
+            entries.computeIfAbsent(method, m -> new ArrayList<>()).add(entry);
+            if (caller != null) {
+                callers.computeIfAbsent(method, m -> new HashMap<>()).merge(caller, calls, Long::sum);
+                callees.computeIfAbsent(caller, m -> new HashMap<>()).merge(method, calls, Long::sum);
+            }
+            if (depth >= depths.length) {
+                depths = Arrays.copyOf(depths, Math.max(depths.length * 2, depth + 1));
+            }
+            depths[depth] += calls;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+    }
+
+    public Collection<MethodStats> getMethods() {
+        return Collections.unmodifiableCollection(stats.values());
+    }
+
+    /**
+     * @return null if the method was never called
+     */
+    public MethodStats getStats(Method method) {
+        return stats.get(method);
+    }
+
+    /**
+     * @return at most n methods with the largest key in descending order
+     */
+    public List<MethodStats> top(int n, ToLongFunction<MethodStats> key) {
+        Comparator<MethodStats> order = Comparator.comparingLong(key);
+        PriorityQueue<MethodStats> top = new PriorityQueue<>(order);
+        for (MethodStats s : stats.values()) {
+            if (top.size() < n) {
+                top.add(s);
+            } else if (n > 0 && order.compare(s, top.peek()) > 0) {
+                top.poll();
+                top.add(s);
+            }
+        }
+        List<MethodStats> result = new ArrayList<>(top);
+        result.sort(order.reversed());
+        return result;
+    }
+
+    public List<MethodStats> topByCalls(int n) {
+        return top(n, MethodStats::getCalls);
+    }
+
+    public List<MethodStats> topByTotalTime(int n) {
+        return top(n, MethodStats::getTotalTime);
+    }
+
+    public List<MethodStats> topBySelfTime(int n) {
+        return top(n, MethodStats::getSelfTime);
+    }
+
+    /**
+     * @return entries of the method in order of execution
+     */
+    public List<AbstractCallTree.Entry> getEntries(Method method) {
+        return Collections.unmodifiableList(entries.getOrDefault(method, Collections.emptyList()));
+    }
+
+    /**
+     * @return distinct paths from top level calls to the method, the last element of every path
+     * is the method itself, and amount of calls of the method by every path
+     */
+    public Map<List<Method>, Long> getPaths(Method method) {
+        Map<List<Method>, Long> result = new LinkedHashMap<>();
+        for (PathNode node : paths.getOrDefault(method, Collections.emptyList())) {
+            result.put(node.getPath(), node.calls);
+        }
+        return result;
+    }
+
+    /**
+     * @return methods that called the given one with amounts of calls, top level calls are not included
+     */
+    public Map<Method, Long> getCallers(Method method) {
+        return Collections.unmodifiableMap(callers.getOrDefault(method, Collections.emptyMap()));
+    }
+
+    /**
+     * @return methods called by the given one with amounts of calls
+     */
+    public Map<Method, Long> getCallees(Method method) {
+        return Collections.unmodifiableMap(callees.getOrDefault(method, Collections.emptyMap()));
+    }
+
+    /**
+     * @return amount of calls by depth, top level calls have depth 1
+     */
+    public long[] getDepthHistogram() {
+        return Arrays.copyOf(depths, maxDepth + 1);
+    }
+
+    // interned call path, methods of its nodes from the root down to the node
+    private static class PathNode {
+        private final PathNode parent;
+        private final Method method;
+        private Map<Method, PathNode> children;
+        private final int depth;
+        private long calls;
+        // null until the node is indexed
+        private List<Method> path;
+
+        PathNode(PathNode parent, Method method) {
+            this.parent = parent;
+            this.method = method;
+            depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        PathNode child(Method method) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            PathNode child = children.get(method);
+            if (child == null) {
+                child = new PathNode(this, method);
+                children.put(method, child);
+            }
+            return child;
+        }
+
+        List<Method> getPath() {
+            if (path == null) {
+                Method[] result = new Method[depth];
+                for (PathNode node = this; node.depth > 0; node = node.parent) {
+                    result[node.depth - 1] = node.method;
+                }
+                path = Collections.unmodifiableList(Arrays.asList(result));
+            }
+            return path;
+        }
+    }
+
+    public static class MethodStats {
+        private final Method method;
+        private long calls;
+        private long entries;
+        private long totalTime;
+        private long selfTime;
+
+        MethodStats(Method method) {
+            this.method = method;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return amount of tree entries, which is less than amount of calls if calls were aggregated
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return time in nanoseconds spent in the method including callees
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        public long getSelfTime() {
+            return selfTime;
+        }
+
+        @Override
+        public String toString() {
+            return method.getDeclaringClass().getName() + '.' + method.getName()
+                    + " [calls " + calls + ", total " + totalTime + " ns, self " + selfTime + " ns]";
+        }
+    }
+}
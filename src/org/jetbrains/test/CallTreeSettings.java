@@ -0,0 +1,95 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Recording options of a {@link CallTree}. Settings of a {@link ConcurrentCallTree}
+ * are shared by trees of all its threads, so they can be changed while recording.
+ */
+public class CallTreeSettings {
+    private volatile ArgumentPolicy argumentPolicy = ArgumentPolicy.eager();
+    private final ConcurrentMap<Method, ArgumentPolicy> methodArgumentPolicies = new ConcurrentHashMap<>();
+    private volatile boolean aggregating;
+    private volatile CallFilter filter = CallFilter.all();
+    private volatile Consumer<CallTree.CallTreeEntry> rootCallListener;
+    private volatile boolean retainingRootCalls = true;
+
+    /**
+     * Filter can be replaced at any moment, calls that are already running are not affected.
+     */
+    public void setFilter(CallFilter filter) {
+        this.filter = filter;
+    }
+
+    public CallFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Listener is called by the recording thread every time a top level call ends,
+     * for example to hand the call off to {@link AsyncTraceWriter}.
+     * Entries of the call don't change after that unless calls are aggregated or the tree is cleared.
+     * Calls of tasks started by the call that have ended by then are passed with it. If the call has
+     * started tasks, the listener gets a copy of it, and calls of tasks that end later are attached
+     * to the tree but are not passed to the listener.
+     *
+     * @param listener listener or null to remove it
+     */
+    public void setRootCallListener(Consumer<CallTree.CallTreeEntry> listener) {
+        rootCallListener = listener;
+    }
+
+    public Consumer<CallTree.CallTreeEntry> getRootCallListener() {
+        return rootCallListener;
+    }
+
+    /**
+     * If top level calls are not retained, every top level call is removed from the tree as soon as
+     * it is passed to the {@link #setRootCallListener(Consumer) root call listener}, so that the memory
+     * of a tree which calls are streamed elsewhere doesn't grow. Entries are not reused then,
+     * so the listener may keep reading them. Calls are retained if there is no listener.
+     * Calls of tasks that end after the call that started them is removed are dropped.
+     */
+    public void setRetainingRootCalls(boolean retaining) {
+        retainingRootCalls = retaining;
+    }
+
+    public boolean isRetainingRootCalls() {
+        return retainingRootCalls;
+    }
+
+    /**
+     * If calls are aggregated, repeated calls of the same method from the same parent entry
+     * are merged into one entry with accumulated call count and time,
+     * and only arguments of the first call are kept.
+     */
+    public void setAggregating(boolean aggregating) {
+        this.aggregating = aggregating;
+    }
+
+    public boolean isAggregating() {
+        return aggregating;
+    }
+
+    /**
+     * Sets policy for all methods that don't have their own one.
+     */
+    public void setArgumentPolicy(ArgumentPolicy policy) {
+        argumentPolicy = policy;
+    }
+
+    public void setArgumentPolicy(Method method, ArgumentPolicy policy) {
+        methodArgumentPolicies.put(method, policy);
+    }
+
+    public ArgumentPolicy getArgumentPolicy(Method method) {
+        // usually there are no per method policies so we don't even need to compute the hash
+        if (method == null || methodArgumentPolicies.isEmpty()) {
+            return argumentPolicy;
+        }
+        return methodArgumentPolicies.getOrDefault(method, argumentPolicy);
+    }
+}
@@ -0,0 +1,34 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+
+/**
+ * Receives call tree entries one by one in order of execution, so trees can be
+ * processed without building them in memory.
+ * Every tree starts with the root entry of depth 0, parent of an entry is
+ * the last visited entry with smaller depth.
+ *
+ * @see CallTree#accept(CallTreeVisitor)
+ * @see CallTreeBuilder
+ */
+public interface CallTreeVisitor {
+    /**
+     * @param caller     and method are null for the root entry
+     * @param calls      see {@link CallTree.CallTreeEntry#getCalls()}
+     * @param totalNanos see {@link CallTree.CallTreeEntry#getTotalTime()}
+     * @param selfNanos  see {@link CallTree.CallTreeEntry#getSelfTime()}
+     */
+    void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                 long calls, long totalNanos, long selfNanos);
+
+    /**
+     * Same as {@link #onEnter} for a call made by a task that its parent handed off to another thread,
+     * see {@link CallTree.CallTreeEntry#isAsync()}. Visitors that don't care about threads don't override it.
+     */
+    default void onAsyncEnter(int depth, Class<?> caller, Method method, String[] args,
+                              long calls, long totalNanos, long selfNanos) {
+        onEnter(depth, caller, method, args, calls, totalNanos, selfNanos);
+    }
+
+    void onTreeEnd();
+}
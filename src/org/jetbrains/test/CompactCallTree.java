@@ -0,0 +1,288 @@
+package org.jetbrains.test;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Read-only call tree that keeps entries in parallel arrays instead of an object per entry,
+ * so it takes several times less memory than a recorded or parsed tree.
+ * Entries are stored in order of execution, methods and argument values are stored once per tree.
+ * Entries are created on access as lightweight views of these arrays, which keep only the index of the entry.
+ * <p>
+ * Trees are built with {@link CompactCallTreeBuilder}, for example
+ * <pre><code>CallTree.parse(file, CompactCallTreeBuilder.into(trees))</code></pre>
+ * or from an existing tree with {@link #of(AbstractCallTree)}.
+ * Compact trees are equal to regular trees with the same entries. Start times are not kept.
+ */
+public class CompactCallTree extends AbstractCallTree<AbstractCallTree.Entry> implements Serializable {
+    static final int NONE = -1;
+
+    private final int size;
+    private final int[] depths;
+    private final int[] methodIds;
+    private final int[] parents;
+    private final int[] nextSiblings;
+    private final long[] calls;
+    private final long[] totalNanos;
+    // arguments of the i-th entry are argIds[argOffsets[i]] until argIds[argOffsets[i + 1]]
+    private final int[] argOffsets;
+    // indices in strings, null arguments are stored as 0
+    private final int[] argIds;
+    private final String[] strings;
+    // indices of async entries, null if there are none
+    private final BitSet async;
+    private transient CallSite[] methods;
+    // computed on first use
+    private transient volatile int[] subtreeHashes;
+
+    CompactCallTree(int size, int[] depths, int[] methodIds, int[] parents, int[] nextSiblings,
+                    long[] calls, long[] totalNanos, int[] argOffsets, int[] argIds,
+                    String[] strings, CallSite[] methods, BitSet async) {
+        this.size = size;
+        this.depths = depths;
+        this.methodIds = methodIds;
+        this.parents = parents;
+        this.nextSiblings = nextSiblings;
+        this.calls = calls;
+        this.totalNanos = totalNanos;
+        this.argOffsets = argOffsets;
+        this.argIds = argIds;
+        this.strings = strings;
+        this.methods = methods;
+        this.async = async;
+    }
+
+    public static CompactCallTree of(AbstractCallTree<?> tree) {
+        if (tree instanceof CompactCallTree) {
+            return (CompactCallTree) tree;
+        }
+        List<CompactCallTree> result = new ArrayList<>(1);
+        tree.accept(CompactCallTreeBuilder.into(result));
+        return result.get(0);
+    }
+
+    /**
+     * @return amount of entries including the root
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    Entry getRoot() {
+        return new EntryView(0);
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return new Iterator<Entry>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Entry next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return new EntryView(next++);
+            }
+        };
+    }
+
+    /**
+     * Entries are independent views, so they are split by index ranges.
+     */
+    @Override
+    public Spliterator<Entry> spliterator() {
+        return IntStream.range(0, size).<Entry>mapToObj(EntryView::new).spliterator();
+    }
+
+    private int[] subtreeHashes() {
+        int[] result = subtreeHashes;
+        if (result == null) {
+            result = new int[size];
+            // children always follow their parent
+            for (int i = size - 1; i >= 0; i--) {
+                int hash = new EntryView(i).hashCode();
+                for (int child = firstChild(i); child != NONE; child = nextSiblings[child]) {
+                    hash = CallTree.CallTreeEntry.combineHash(hash, result[child]);
+                }
+                result[i] = CallTree.CallTreeEntry.finishHash(hash);
+            }
+            subtreeHashes = result;
+        }
+        return result;
+    }
+
+    private int firstChild(int index) {
+        return index + 1 < size && parents[index + 1] == index ? index + 1 : NONE;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(methods.length);
+        for (CallSite site : methods) {
+            Method method = site.getMethod();
+            out.writeObject(site.getCaller());
+            out.writeObject(method == null ? null : method.getName());
+            out.writeObject(method == null ? null : method.getParameterTypes());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        methods = new CallSite[in.readInt()];
+        for (int i = 0; i < methods.length; i++) {
+            Class<?> caller = (Class<?>) in.readObject();
+            String name = (String) in.readObject();
+            Class<?>[] params = (Class<?>[]) in.readObject();
+            Method method = null;
+            if (name != null) {
+                try {
+                    method = Util.getMethod(caller, name, params);
+                } catch (NoSuchMethodException e) {
+                    System.err.println("unable to restore Method from method info during deserialization");
+                    ProfilerMetrics.get().resolutionFailed();
+                }
+            }
+            methods[i] = new CallSite(caller, method);
+        }
+    }
+
+    // view of the index-th entry
+    private class EntryView implements Entry {
+        private final int index;
+
+        EntryView(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int getDepth() {
+            return depths[index];
+        }
+
+        @Override
+        public Class<?> getCaller() {
+            return methods[methodIds[index]].getCaller();
+        }
+
+        @Override
+        public Method getMethod() {
+            return methods[methodIds[index]].getMethod();
+        }
+
+        /**
+         * @return new array on every call, so that it can't change the tree
+         */
+        @Override
+        public String[] getArgs() {
+            if (depths[index] == 0) {
+                return null;
+            }
+            String[] args = new String[argOffsets[index + 1] - argOffsets[index]];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = strings[argIds[argOffsets[index] + i]];
+            }
+            return args;
+        }
+
+        @Override
+        public List<Entry> getChildren() {
+            int count = 0;
+            for (int child = firstChild(index); child != NONE; child = nextSiblings[child]) {
+                count++;
+            }
+            int[] children = new int[count];
+            for (int i = 0, child = firstChild(index); child != NONE; child = nextSiblings[child]) {
+                children[i++] = child;
+            }
+            return new ChildList(children);
+        }
+
+        @Override
+        public long getCalls() {
+            return calls[index];
+        }
+
+        @Override
+        public long getTotalTime() {
+            return totalNanos[index];
+        }
+
+        @Override
+        public long getSelfTime() {
+            long self = totalNanos[index];
+            if (self < 0) {
+                return CallTree.CallTreeEntry.UNKNOWN_TIME;
+            }
+            for (int child = firstChild(index); child != NONE; child = nextSiblings[child]) {
+                if (async == null || !async.get(child)) {
+                    self -= Math.max(totalNanos[child], 0);
+                }
+            }
+            return self;
+        }
+
+        @Override
+        public boolean isAsync() {
+            return async != null && async.get(index);
+        }
+
+        @Override
+        public int getSubtreeHash() {
+            return subtreeHashes()[index];
+        }
+
+        @Override
+        public boolean subtreeEquals(Entry other) {
+            return CallTree.CallTreeEntry.subtreeEquals(this, other);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && CallTree.CallTreeEntry.dataEquals(this, (Entry) other);
+        }
+
+        @Override
+        public int hashCode() {
+            return CallTree.CallTreeEntry.dataHash(this);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            CallTree.CallTreeEntry.format(sb, getDepth(), isAsync(), getCaller(), getMethod(), getArgs(),
+                    getCalls(), getTotalTime(), getSelfTime());
+            return sb.toString();
+        }
+    }
+
+    // indices of children are collected when the list is created, so that access by index takes constant time
+    private class ChildList extends AbstractList<Entry> implements RandomAccess {
+        private final int[] children;
+
+        ChildList(int[] children) {
+            this.children = children;
+        }
+
+        @Override
+        public Entry get(int index) {
+            return new EntryView(children[index]);
+        }
+
+        @Override
+        public int size() {
+            return children.length;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Builds {@link CompactCallTree}s from visited entries.
+ */
+public class CompactCallTreeBuilder implements CallTreeVisitor {
+    private final Consumer<? super CompactCallTree> consumer;
+
+    private int size;
+    private int[] depths = new int[64];
+    private int[] methodIds = new int[64];
+    private int[] parents = new int[64];
+    private int[] nextSiblings = new int[64];
+    private long[] calls = new long[64];
+    private long[] totalNanos = new long[64];
+    private int[] argOffsets = new int[65];
+    private int[] argIds = new int[64];
+    private int argCount;
+    // indices of async entries, null if there are none
+    private BitSet async;
+    // last entry on every level of the current path
+    private int[] path = new int[16];
+    private int pathLength;
+
+    private final Map<CallSite, Integer> methodIdsBySite = new HashMap<>();
+    private final List<CallSite> methods = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * @param consumer receives every tree as soon as it is built
+     */
+    public CompactCallTreeBuilder(Consumer<? super CompactCallTree> consumer) {
+        this.consumer = consumer;
+        reset();
+    }
+
+    /**
+     * @return builder that adds trees to the given list
+     */
+    public static CompactCallTreeBuilder into(List<? super CompactCallTree> trees) {
+        return new CompactCallTreeBuilder(trees::add);
+    }
+
+    @Override
+    public void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                        long calls, long totalNanos, long selfNanos) {
+        // roots are handled as in CallTreeBuilder, see EntryPath. the path is kept in an array
+        // of indices instead, because snapshots are built here and boxing every index would be too costly
+        if (depth == 0 && size > 0) {
+            onTreeEnd();
+        } else if (depth > 0 && pathLength == 0) {
+            onEnter(0, null, null, null, 1, CallTree.CallTreeEntry.UNKNOWN_TIME, CallTree.CallTreeEntry.UNKNOWN_TIME);
+        }
+        if (size == depths.length) {
+            grow();
+        }
+        int index = size++;
+        depths[index] = depth;
+        methodIds[index] = methodId(caller, method);
+        this.calls[index] = calls;
+        // self time is computed from children
+        this.totalNanos[index] = totalNanos;
+        nextSiblings[index] = CompactCallTree.NONE;
+        // entries with a missing parent are attached to the deepest one
+        int level = Math.min(depth, pathLength);
+        parents[index] = level == 0 ? CompactCallTree.NONE : path[level - 1];
+        if (pathLength > level) {
+            nextSiblings[path[level]] = index;
+        }
+        if (level == path.length) {
+            path = Arrays.copyOf(path, path.length * 2);
+        }
+        path[level] = index;
+        pathLength = level + 1;
+
+        int argsLength = args == null ? 0 : args.length;
+        if (argCount + argsLength > argIds.length) {
+            argIds = Arrays.copyOf(argIds, Math.max(argIds.length * 2, argCount + argsLength));
+        }
+        for (int i = 0; i < argsLength; i++) {
+            argIds[argCount++] = stringId(args[i]);
+        }
+        argOffsets[index + 1] = argCount;
+    }
+
+    @Override
+    public void onAsyncEnter(int depth, Class<?> caller, Method method, String[] args,
+                             long calls, long totalNanos, long selfNanos) {
+        onEnter(depth, caller, method, args, calls, totalNanos, selfNanos);
+        if (async == null) {
+            async = new BitSet();
+        }
+        async.set(size - 1);
+    }
+
+    @Override
+    public void onTreeEnd() {
+        if (size > 0) {
+            consumer.accept(new CompactCallTree(size, Arrays.copyOf(depths, size),
+                    Arrays.copyOf(methodIds, size), Arrays.copyOf(parents, size),
+                    Arrays.copyOf(nextSiblings, size), Arrays.copyOf(calls, size),
+                    Arrays.copyOf(totalNanos, size), Arrays.copyOf(argOffsets, size + 1),
+                    Arrays.copyOf(argIds, argCount), strings.toArray(new String[0]),
+                    methods.toArray(new CallSite[0]), async));
+        }
+        reset();
+    }
+
+    // dictionaries are not shared between trees, so that every tree keeps only what it uses
+    private void reset() {
+        size = 0;
+        argCount = 0;
+        async = null;
+        pathLength = 0;
+        methodIdsBySite.clear();
+        methods.clear();
+        stringIds.clear();
+        strings.clear();
+        strings.add(null);
+    }
+
+    private void grow() {
+        int capacity = depths.length * 2;
+        depths = Arrays.copyOf(depths, capacity);
+        methodIds = Arrays.copyOf(methodIds, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        calls = Arrays.copyOf(calls, capacity);
+        totalNanos = Arrays.copyOf(totalNanos, capacity);
+        argOffsets = Arrays.copyOf(argOffsets, capacity + 1);
+    }
+
+    private int methodId(Class<?> caller, Method method) {
+        CallSite site = new CallSite(caller, method);
+        Integer id = methodIdsBySite.get(site);
+        if (id == null) {
+            id = methods.size();
+            methods.add(site);
+            methodIdsBySite.put(site, id);
+        }
+        return id;
+    }
+
+    private int stringId(String s) {
+        if (s == null) {
+            return 0;
+        }
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s);
+            stringIds.put(s, id);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,224 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads call trees written by {@link CompressedTraceWriter}.
+ * Blocks are inflated independently, so they can be read by several threads at once,
+ * and a single tree is read by inflating only the beginning of its block.
+ */
+public class CompressedTraceReader implements Closeable {
+    private final File file;
+    private final FileChannel channel;
+    private final List<Block> blocks = new ArrayList<>();
+    private final int size;
+
+    public CompressedTraceReader(File f) throws IOException {
+        file = f;
+        channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            // header magic, index offset and trailer magic
+            if (fileSize < 16 || read(0, 4).getInt() != CompressedTraceWriter.MAGIC) {
+                throw new IOException("not a compressed trace file: " + f);
+            }
+            ByteBuffer trailer = read(fileSize - 12, 12);
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != CompressedTraceWriter.MAGIC || indexOffset < 4 || indexOffset > fileSize - 12) {
+                throw new IOException("file is incomplete, block index is missing: " + f);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    read(indexOffset, (int) (fileSize - 12 - indexOffset)).array()));
+            int count = in.readInt();
+            int trees = 0;
+            for (int i = 0; i < count; i++) {
+                Block block = Block.read(in, trees);
+                blocks.add(block);
+                trees += block.treeOffsets.length;
+            }
+            size = trees;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the magic number at the start of the file.
+     */
+    public static boolean isCompressed(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return f.length() >= 4 && in.readInt() == CompressedTraceWriter.MAGIC;
+        }
+    }
+
+    /**
+     * @return amount of trees in the file
+     */
+    public int size() {
+        return size;
+    }
+
+    int blockCount() {
+        return blocks.size();
+    }
+
+    /**
+     * Reads only the given tree.
+     */
+    public CallTree read(int tree) throws IOException {
+        Block block = blockOf(tree);
+        int i = tree - block.firstTree;
+        int start = block.treeOffsets[i];
+        int end = i + 1 < block.treeOffsets.length ? block.treeOffsets[i + 1] : block.length;
+        // trees after this one are not inflated at all
+        byte[] bytes = inflate(block, end);
+        List<CallTree> trees = new ArrayList<>(1);
+        parse(bytes, start, end - start, CallTreeBuilder.into(trees));
+        if (trees.size() != 1) {
+            throw new IOException("unable to parse tree " + tree + " of " + file);
+        }
+        return trees.get(0);
+    }
+
+    // block that contains the tree
+    Block blockOf(int tree) {
+        if (tree < 0 || tree >= size) {
+            throw new IndexOutOfBoundsException("file " + file + " has " + size + " trees");
+        }
+        int lo = 0;
+        int hi = blocks.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blocks.get(mid).firstTree <= tree) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return blocks.get(lo);
+    }
+
+    /**
+     * Parses all trees of one block, blocks can be read concurrently.
+     */
+    List<CallTree> readBlock(int index) throws IOException {
+        Block block = blocks.get(index);
+        List<CallTree> trees = new ArrayList<>(block.treeOffsets.length);
+        parse(inflate(block, block.length), 0, block.length, CallTreeBuilder.into(trees));
+        if (trees.size() != block.treeOffsets.length) {
+            throw new IOException("unable to parse block " + index + " of " + file);
+        }
+        return trees;
+    }
+
+    /**
+     * Passes entries of all trees to the visitor.
+     */
+    public void accept(CallTreeVisitor visitor) throws IOException {
+        for (Block block : blocks) {
+            parse(inflate(block, block.length), 0, block.length, visitor);
+        }
+    }
+
+    public List<CallTree> readAll() throws IOException {
+        List<CallTree> trees = new ArrayList<>(size);
+        accept(CallTreeBuilder.into(trees));
+        return trees;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void parse(byte[] bytes, int offset, int length, CallTreeVisitor visitor) throws IOException {
+        CallTree.parse(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes, offset, length), StandardCharsets.UTF_8)), visitor);
+    }
+
+    // inflates the first limit bytes of the block
+    private byte[] inflate(Block block, int limit) throws IOException {
+        byte[] compressed = read(block.offset, block.compressedLength).array();
+        byte[] result = new byte[limit];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < limit) {
+                int n = inflater.inflate(result, length, limit - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("file is corrupted, block at " + block.offset + " is too short");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("file is corrupted, unable to inflate block at " + block.offset, e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    // positional reads don't change the position of the channel, so it can be shared between threads
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of file " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Independently compressed part of the file that contains one or more whole trees.
+     */
+    static class Block {
+        final long offset;
+        final int compressedLength;
+        // uncompressed length
+        final int length;
+        final int firstTree;
+        // offsets of trees in the uncompressed block
+        final int[] treeOffsets;
+
+        Block(long offset, int compressedLength, int length, int firstTree, int[] treeOffsets) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.length = length;
+            this.firstTree = firstTree;
+            this.treeOffsets = treeOffsets;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeLong(offset);
+            out.writeInt(compressedLength);
+            out.writeInt(length);
+            out.writeInt(treeOffsets.length);
+            for (int treeOffset : treeOffsets) {
+                out.writeInt(treeOffset);
+            }
+        }
+
+        static Block read(DataInput in, int firstTree) throws IOException {
+            long offset = in.readLong();
+            int compressedLength = in.readInt();
+            int length = in.readInt();
+            int[] treeOffsets = new int[in.readInt()];
+            for (int i = 0; i < treeOffsets.length; i++) {
+                treeOffsets[i] = in.readInt();
+            }
+            return new Block(offset, compressedLength, length, firstTree, treeOffsets);
+        }
+    }
+}
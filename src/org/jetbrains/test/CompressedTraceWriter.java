@@ -0,0 +1,121 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes call trees in the format of {@link CallTree#write(OutputStream)} compressed with {@link Deflater}.
+ * Trees are grouped into blocks that are compressed independently, so that they can be inflated
+ * in parallel and a single tree can be read without inflating the whole file,
+ * see {@link CompressedTraceReader}. {@link CallTree#parse(File)} and {@link ParallelTraceLoader}
+ * recognize compressed files themselves.
+ * <p>
+ * File starts with {@link #MAGIC} followed by compressed blocks. Then goes the index of blocks:
+ * amount of blocks and for every block its offset, compressed and uncompressed length
+ * and offsets of its trees. The file ends with the offset of the index and {@link #MAGIC} again.
+ */
+public class CompressedTraceWriter implements Closeable {
+    static final int MAGIC = 0x43545a31;
+    private static final ProfilerMetrics METRICS = ProfilerMetrics.get();
+    // blocks are at least that large unless there are not enough trees
+    private static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final Deflater deflater;
+    private final BlockBuffer block = new BlockBuffer();
+    private byte[] compressed = new byte[1 << 16];
+    private int[] treeOffsets = new int[16];
+    private int trees;
+    private int firstTree;
+    private final List<CompressedTraceReader.Block> blocks = new ArrayList<>();
+    private long position;
+
+    public CompressedTraceWriter(File f) throws IOException {
+        this(f, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param blockSize uncompressed size of blocks, larger blocks are compressed better
+     *                  but more has to be inflated in order to read a single tree
+     * @param level     compression level of {@link Deflater}
+     */
+    public CompressedTraceWriter(File f, int blockSize, int level) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size should be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+        deflater = new Deflater(level);
+        out.writeInt(MAGIC);
+        position = 4;
+    }
+
+    public void write(AbstractCallTree<?> tree) throws IOException {
+        if (trees == treeOffsets.length) {
+            treeOffsets = Arrays.copyOf(treeOffsets, trees * 2);
+        }
+        treeOffsets[trees++] = block.size();
+        tree.write(block);
+        if (block.size() >= blockSize) {
+            flushBlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+            long indexOffset = position;
+            out.writeInt(blocks.size());
+            for (CompressedTraceReader.Block b : blocks) {
+                b.write(out);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (trees == 0) {
+            return;
+        }
+        // trees are counted when they reach the file, not when they are added to the block
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        deflater.reset();
+        deflater.setInput(block.buffer(), 0, block.size());
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(compressed);
+            out.write(compressed, 0, n);
+            compressedLength += n;
+        }
+        blocks.add(new CompressedTraceReader.Block(position, compressedLength, block.size(), firstTree,
+                Arrays.copyOf(treeOffsets, trees)));
+        position += compressedLength;
+        if (start != 0) {
+            METRICS.written(trees, compressedLength, System.nanoTime() - start);
+        }
+        firstTree += trees;
+        trees = 0;
+        block.reset();
+    }
+
+    // gives access to the buffer without copying it
+    private static class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer() {
+            super(1 << 16);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
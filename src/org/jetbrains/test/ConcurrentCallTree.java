@@ -0,0 +1,147 @@
+package org.jetbrains.test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Call tree for methods executed by several threads.
+ * Usage is the same as for {@link CallTree}:
+ * <pre>
+ * <code>try (CallTree.Overseer ignored = concurrentCallTree.stepIn(s)) {
+ *     // code here
+ * } </code></pre>
+ * Every thread records calls into its own {@link CallTree}, so there is no locking
+ * or shared mutable state on the hot path. Trees are available per thread with
+ * {@link #getTrees()} or as one tree with {@link #merge()}. Both should be called
+ * when instrumented code is done, just like reading a regular CallTree.
+ * Trees that are still being recorded can be read with {@link #snapshot()}.
+ * <p>
+ * Calls of tasks that are submitted to executors are recorded as async callees of the call
+ * that submitted them if tasks are {@link #wrap(Runnable) wrapped}:
+ * <pre>
+ * <code>ExecutorService executor = concurrentCallTree.wrap(Executors.newFixedThreadPool(4));
+ * CompletableFuture.supplyAsync(this::compute, executor); </code></pre>
+ * Threads of executors don't keep trees of wrapped tasks, so it works for short-lived threads
+ * such as virtual threads too.
+ */
+public class ConcurrentCallTree {
+    private final ThreadLocal<CallTree> local = new ThreadLocal<>();
+    private final ConcurrentMap<Long, CallTree> trees = new ConcurrentHashMap<>();
+    private final CallTreeSettings settings = new CallTreeSettings();
+
+    public CallTree.Overseer stepIn(Object... args) {
+        return local().stepInFromStack(args);
+    }
+
+    public CallTree.Overseer stepIn(CallSite site, Object... args) {
+        return local().stepIn(site, args);
+    }
+
+    /**
+     * @return tree recorded by the current thread
+     */
+    public CallTree local() {
+        CallTree tree = local.get();
+        if (tree == null) {
+            // happens once per thread so it's fine to touch the shared map here
+            tree = new CallTree(settings);
+            trees.put(Thread.currentThread().getId(), tree);
+            local.set(tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the task that records its calls as async callees of the call that is running
+     * in the current thread now. Calls are attached when the task ends, so they are in the tree
+     * of this thread even if the call has ended already. Calls of tasks that end after the tree
+     * of this thread is cleared are dropped.
+     */
+    public Runnable wrap(Runnable task) {
+        CallTree.AsyncContext context = local().capture();
+        return () -> {
+            CallTree previous = start(context);
+            try {
+                task.run();
+            } finally {
+                finish(context, previous);
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #wrap(Runnable)}.
+     */
+    public <V> Callable<V> wrap(Callable<V> task) {
+        CallTree.AsyncContext context = local().capture();
+        return () -> {
+            CallTree previous = start(context);
+            try {
+                return task.call();
+            } finally {
+                finish(context, previous);
+            }
+        };
+    }
+
+    /**
+     * @return executor that {@link #wrap(Runnable) wraps} all tasks submitted to it
+     */
+    public ExecutorService wrap(ExecutorService executor) {
+        return new CallTreeExecutorService(this, executor);
+    }
+
+    // the task may run in the thread that submitted it, so its tree is restored afterwards
+    private CallTree start(CallTree.AsyncContext context) {
+        CallTree previous = local.get();
+        local.set(context.start());
+        return previous;
+    }
+
+    private void finish(CallTree.AsyncContext context, CallTree previous) {
+        CallTree tree = local.get();
+        if (previous == null) {
+            local.remove();
+        } else {
+            local.set(previous);
+        }
+        context.finish(tree);
+    }
+
+    /**
+     * @return settings shared by trees of all threads
+     */
+    public CallTreeSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return trees of all threads that have ever recorded anything, keyed by thread id
+     */
+    public Map<Long, CallTree> getTrees() {
+        return Collections.unmodifiableMap(new TreeMap<>(trees));
+    }
+
+    /**
+     * Takes snapshots of trees of all threads without stopping them, see {@link CallTree#snapshot()}.
+     *
+     * @return snapshots keyed by thread id
+     */
+    public Map<Long, CompactCallTree> snapshot() {
+        Map<Long, CompactCallTree> result = new TreeMap<>();
+        trees.forEach((id, tree) -> result.put(id, tree.snapshot()));
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return new tree containing copies of calls from all threads, threads are ordered by id
+     */
+    public CallTree merge() {
+        return CallTree.concat(new TreeMap<>(trees).values());
+    }
+}
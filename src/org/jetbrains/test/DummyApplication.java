@@ -8,6 +8,11 @@ import java.util.Random;
  * 18-Apr-17
  */
 public class DummyApplication {
+    // resolved once, so that calls don't inspect the call stack
+    private static final CallSite ABC = CallSite.of(DummyApplication.class, "abc", String.class);
+    private static final CallSite DEF = CallSite.of(DummyApplication.class, "def", String.class);
+    private static final CallSite XYZ = CallSite.of(DummyApplication.class, "xyz", String.class);
+
     private final List<String> args;
     private Random random = new Random(System.nanoTime());
     CallTree callTree = new CallTree();
@@ -38,7 +43,7 @@ public class DummyApplication {
     }
 
     private void abc(String s) {
-        try (CallTree.Overseer ignored = callTree.stepIn(s)) {
+        try (CallTree.Overseer ignored = callTree.stepIn(ABC, s)) {
             sleep();
             if (stop()) {
                 //do nothing
@@ -51,7 +56,7 @@ public class DummyApplication {
     }
 
     private void def(String s) {
-        try (CallTree.Overseer ignored = callTree.stepIn(s)) {
+        try (CallTree.Overseer ignored = callTree.stepIn(DEF, s)) {
             sleep();
             if (stop()) {
                 //do nothing
@@ -64,7 +69,7 @@ public class DummyApplication {
     }
 
     private void xyz(String s) {
-        try (CallTree.Overseer ignored = callTree.stepIn(s)) {
+        try (CallTree.Overseer ignored = callTree.stepIn(XYZ, s)) {
             sleep();
             if (stop()) {
                 //do nothing
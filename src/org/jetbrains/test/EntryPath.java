@@ -0,0 +1,63 @@
+package org.jetbrains.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Nodes on the path from the root to the last visited entry, index is depth. It's how visitors
+ * rebuild trees from depths of entries: the parent of an entry is the last node one level higher.
+ * Input may be incomplete: an entry deeper than the path is attached to the deepest node,
+ * and if a tree doesn't start with the root, the root is assumed.
+ *
+ * @param <T> nodes built by the visitor
+ */
+final class EntryPath<T> {
+    private final Supplier<? extends T> impliedRoot;
+    private final List<T> nodes = new ArrayList<>();
+
+    /**
+     * @param impliedRoot called for trees that don't start with the root
+     */
+    EntryPath(Supplier<? extends T> impliedRoot) {
+        this.impliedRoot = impliedRoot;
+    }
+
+    /**
+     * Starts a new tree with the node of its root entry.
+     */
+    void start(T root) {
+        nodes.clear();
+        nodes.add(root);
+    }
+
+    /**
+     * @param depth positive depth of the entry, nodes of deeper entries are removed from the path
+     * @return node the entry is attached to
+     */
+    T parent(int depth) {
+        if (nodes.isEmpty()) {
+            nodes.add(impliedRoot.get());
+        }
+        int level = Math.min(depth, nodes.size());
+        while (nodes.size() > level) {
+            nodes.remove(nodes.size() - 1);
+        }
+        return nodes.get(level - 1);
+    }
+
+    /**
+     * Adds the node of the entry that {@link #parent(int)} has been found for.
+     */
+    void push(T node) {
+        nodes.add(node);
+    }
+
+    void clear() {
+        nodes.clear();
+    }
+
+    boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+}
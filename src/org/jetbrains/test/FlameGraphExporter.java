@@ -0,0 +1,279 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Merges identical stacks of visited entries and exports them as a flame graph.
+ * Only stacks are kept in memory, so any amount of trees can be passed through it,
+ * for example with {@link CallTree#parse(File, CallTreeVisitor)}.
+ * <pre>
+ * <code>FlameGraphExporter exporter = new FlameGraphExporter(FlameGraphExporter.Weight.SELF_TIME);
+ * tree.accept(exporter);
+ * exporter.writeSvg(out); </code></pre>
+ * Supported formats are folded stacks ({@code a;b;c value} per line) that are understood by most
+ * flame graph tools, and self-contained SVG and HTML.
+ * Frames are named {@code fully.qualified.ClassName.methodName}, arguments are not taken into account.
+ */
+public class FlameGraphExporter implements CallTreeVisitor {
+    private static final int WIDTH = 1200;
+    private static final int FRAME_HEIGHT = 16;
+    private static final int FONT_SIZE = 12;
+    private static final double CHAR_WIDTH = 7;
+    // narrower frames are not drawn, so that the image doesn't grow with the amount of stacks
+    private static final double MIN_FRAME_WIDTH = 0.1;
+
+    public enum Weight {
+        /**
+         * Self time in nanoseconds, entries with unknown time are not counted.
+         */
+        SELF_TIME,
+        CALLS
+    }
+
+    private final Weight weight;
+    private final Frame root = new Frame("all");
+    private final EntryPath<Frame> path = new EntryPath<>(() -> root);
+
+    public FlameGraphExporter() {
+        this(Weight.SELF_TIME);
+    }
+
+    public FlameGraphExporter(Weight weight) {
+        this.weight = weight;
+    }
+
+    @Override
+    public void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                        long calls, long totalNanos, long selfNanos) {
+        if (depth == 0) {
+            path.start(root);
+            return;
+        }
+        Frame frame = path.parent(depth).child(name(caller, method));
+        frame.self += weight == Weight.CALLS ? calls : Math.max(selfNanos, 0);
+        path.push(frame);
+    }
+
+    @Override
+    public void onTreeEnd() {
+        path.clear();
+    }
+
+    /**
+     * Converts file written with {@link CallTree#write(OutputStream)} to a flame graph,
+     * format is chosen by the extension of the output file: svg, html or folded stacks otherwise.
+     */
+    public static void fromText(File text, File output) throws IOException {
+        FlameGraphExporter exporter = new FlameGraphExporter();
+        CallTree.parse(text, exporter);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            String name = output.getName().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".svg")) {
+                exporter.writeSvg(out);
+            } else if (name.endsWith(".html") || name.endsWith(".htm")) {
+                exporter.writeHtml(out);
+            } else {
+                exporter.writeFolded(out);
+            }
+        }
+    }
+
+    /**
+     * Writes one line per stack with its value, stacks with zero value are skipped.
+     */
+    public void writeFolded(OutputStream os) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8)));
+        StringBuilder stack = new StringBuilder();
+        // lengths of the stack string before every frame on the current path
+        ArrayDeque<Integer> lengths = new ArrayDeque<>();
+        ArrayDeque<Iterator<Frame>> pending = new ArrayDeque<>();
+        pending.push(root.children().iterator());
+        while (!pending.isEmpty()) {
+            if (!pending.peek().hasNext()) {
+                pending.pop();
+                if (!lengths.isEmpty()) {
+                    stack.setLength(lengths.pop());
+                }
+                continue;
+            }
+            Frame frame = pending.peek().next();
+            lengths.push(stack.length());
+            if (stack.length() > 0) {
+                stack.append(';');
+            }
+            stack.append(frame.name);
+            if (frame.self > 0) {
+                out.append(stack).append(' ').println(frame.self);
+            }
+            pending.push(frame.children().iterator());
+        }
+        out.flush();
+    }
+
+    public void writeSvg(OutputStream os) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8)));
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        svg(out);
+        out.flush();
+    }
+
+    /**
+     * Writes a page with the SVG image inside.
+     */
+    public void writeHtml(OutputStream os) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8)));
+        out.println("<!DOCTYPE html>");
+        out.println("<html><head><meta charset=\"utf-8\"><title>Flame graph</title></head><body>");
+        svg(out);
+        out.println("</body></html>");
+        out.flush();
+    }
+
+    private void svg(PrintWriter out) {
+        long total = root.computeTotals();
+        int height = (root.computeDepth() + 1) * FRAME_HEIGHT;
+        out.format("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\" "
+                + "font-family=\"monospace\" font-size=\"%d\">%n", WIDTH, height, FONT_SIZE);
+        out.format("<rect width=\"100%%\" height=\"100%%\" fill=\"#ffffff\"/>%n");
+        if (total == 0) {
+            out.println("</svg>");
+            return;
+        }
+        double scale = (double) WIDTH / total;
+        // frames are drawn from the bottom, x is the left edge of the frame
+        ArrayDeque<Frame> frames = new ArrayDeque<>();
+        ArrayDeque<Double> xs = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        frames.push(root);
+        xs.push(0.0);
+        depths.push(0);
+        while (!frames.isEmpty()) {
+            Frame frame = frames.pop();
+            double x = xs.pop();
+            int depth = depths.pop();
+            double width = frame.total * scale;
+            double y = height - (depth + 1) * FRAME_HEIGHT;
+            frame(out, frame, x, y, width, total);
+            double childX = x;
+            for (Frame child : frame.children()) {
+                if (child.total * scale >= MIN_FRAME_WIDTH) {
+                    frames.push(child);
+                    xs.push(childX);
+                    depths.push(depth + 1);
+                }
+                childX += child.total * scale;
+            }
+        }
+        out.println("</svg>");
+    }
+
+    private static void frame(PrintWriter out, Frame frame, double x, double y, double width, long total) {
+        String name = escape(frame.name);
+        out.format(Locale.ROOT, "<g><title>%s (%d, %.2f%%)</title>", name, frame.total, 100.0 * frame.total / total);
+        out.format(Locale.ROOT, "<rect x=\"%.1f\" y=\"%.1f\" width=\"%.1f\" height=\"%d\" fill=\"%s\" rx=\"2\"/>",
+                x, y, width, FRAME_HEIGHT - 1, color(frame.name));
+        int chars = (int) ((width - 6) / CHAR_WIDTH);
+        if (chars >= 3) {
+            String label = frame.name.length() <= chars ? frame.name : frame.name.substring(0, chars - 2) + "..";
+            out.format(Locale.ROOT, "<text x=\"%.1f\" y=\"%.1f\">%s</text>", x + 3, y + FRAME_HEIGHT - 4, escape(label));
+        }
+        out.println("</g>");
+    }
+
+    // warm colors that are the same for the same method in all graphs
+    private static String color(String name) {
+        int hash = name.hashCode();
+        int r = 205 + (hash & 0x3F) % 50;
+        int g = (hash >>> 8 & 0xFF) % 190;
+        int b = (hash >>> 16 & 0xFF) % 55;
+        return String.format("#%02x%02x%02x", r, g, b);
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String name(Class<?> caller, Method method) {
+        if (caller == null) {
+            return "unknown";
+        }
+        return method == null ? caller.getName() : caller.getName() + '.' + method.getName();
+    }
+
+    // node of the trie of stacks
+    private static class Frame {
+        private final String name;
+        private Map<String, Frame> children;
+        private long self;
+        // self time plus totals of children, computed before drawing
+        private long total;
+
+        Frame(String name) {
+            this.name = name;
+        }
+
+        Frame child(String name) {
+            if (children == null) {
+                children = new LinkedHashMap<>();
+            }
+            Frame child = children.get(name);
+            if (child == null) {
+                child = new Frame(name);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        Collection<Frame> children() {
+            return children == null ? Collections.emptyList() : children.values();
+        }
+
+        long computeTotals() {
+            // children are computed before their parents
+            List<Frame> order = parentsFirst();
+            for (int i = order.size() - 1; i >= 0; i--) {
+                Frame frame = order.get(i);
+                frame.total = frame.self;
+                for (Frame child : frame.children()) {
+                    frame.total += child.total;
+                }
+            }
+            return total;
+        }
+
+        int computeDepth() {
+            int depth = 0;
+            ArrayDeque<Frame> frames = new ArrayDeque<>();
+            ArrayDeque<Integer> depths = new ArrayDeque<>();
+            frames.push(this);
+            depths.push(0);
+            while (!frames.isEmpty()) {
+                Frame frame = frames.pop();
+                int d = depths.pop();
+                depth = Math.max(depth, d);
+                for (Frame child : frame.children()) {
+                    frames.push(child);
+                    depths.push(d + 1);
+                }
+            }
+            return depth;
+        }
+
+        private List<Frame> parentsFirst() {
+            List<Frame> result = new ArrayList<>();
+            ArrayDeque<Frame> frames = new ArrayDeque<>();
+            frames.push(this);
+            while (!frames.isEmpty()) {
+                Frame frame = frames.pop();
+                result.add(frame);
+                for (Frame child : frame.children()) {
+                    frames.push(child);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.util.stream.IntStream;
 public class Main {
 
     public static void main(String[] args) {
+        ProfilerMetrics.get().setEnabled(true);
         ExecutorService service = Executors.newFixedThreadPool(3);
         List<DummyApplication> apps = new ArrayList<>();
         List<Future<?>> tasks = new ArrayList<>();
@@ -35,12 +36,18 @@ public class Main {
         }
         apps.forEach(app -> System.out.println(app.callTree));
 
-        try (FileOutputStream fos = new FileOutputStream(new File("data.txt"))) {
+        // text is written in the background while other formats are written here
+        AsyncTraceWriter textWriter;
+        try {
+            textWriter = new AsyncTraceWriter(new File("data.txt"));
+        } catch (IOException e) {
+            System.err.println("can not write text trace: " + e.getMessage());
+            textWriter = null;
+        }
+        if (textWriter != null) {
             for (DummyApplication app : apps) {
-                app.callTree.write(fos);
+                textWriter.write(app.callTree);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
 
         try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(new File("data.ser")))) {
@@ -50,5 +57,31 @@ public class Main {
         } catch (IOException e) {
             System.err.println("can not serialize: " + e.getMessage());
         }
+
+        try (BinaryTraceWriter writer = new BinaryTraceWriter(new File("data.bin"))) {
+            for (DummyApplication app : apps) {
+                writer.write(app.callTree);
+            }
+        } catch (IOException e) {
+            System.err.println("can not write binary trace: " + e.getMessage());
+        }
+
+        try (CompressedTraceWriter writer = new CompressedTraceWriter(new File("data.ctz"))) {
+            for (DummyApplication app : apps) {
+                writer.write(app.callTree);
+            }
+        } catch (IOException e) {
+            System.err.println("can not write compressed trace: " + e.getMessage());
+        }
+
+        if (textWriter != null) {
+            try {
+                textWriter.close();
+                System.out.println("text trace: " + textWriter);
+            } catch (IOException e) {
+                System.err.println("can not write text trace: " + e.getMessage());
+            }
+        }
+        System.out.println("profiler: " + ProfilerMetrics.get());
     }
 }
@@ -0,0 +1,90 @@
+package org.jetbrains.test;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Looks up instrumented methods in the call stack.
+ * Resolved methods are cached by stack trace element, so reflection is usually done only once per call site.
+ * A line may still belong to several overloads, e.g. if they are written on one line, so a cached method
+ * is used only if it accepts the arguments. Classes compiled without line numbers are not cached at all.
+ */
+final class MethodResolver {
+    private static final ConcurrentMap<StackTraceElement, CallSite> CACHE = new ConcurrentHashMap<>();
+
+    private MethodResolver() {
+    }
+
+    /**
+     * @param frames amount of profiler frames between this method and the instrumented one,
+     *               including this method itself
+     */
+    static CallSite callSite(int frames, Object[] args) {
+        // it's cheaper than Thread.getStackTrace which does the same thing and some security checks
+        StackTraceElement elem = new Throwable().getStackTrace()[frames];
+        // without line numbers all calls of methods with the same name look the same
+        boolean cached = elem.getLineNumber() >= 0;
+        CallSite site = cached ? CACHE.get(elem) : null;
+        if (site == null || !accepts(site.getMethod(), args)) {
+            site = resolve(elem, args);
+            // null args make the lookup less precise, so such results are not cached
+            if (cached && site.getMethod() != null && Arrays.stream(args).noneMatch(Objects::isNull)) {
+                CACHE.put(elem, site);
+            }
+        }
+        return site;
+    }
+
+
+    private static CallSite resolve(StackTraceElement elem, Object[] args) {
+        Class<?> caller;
+        try {
+            caller = Class.forName(elem.getClassName());
+        } catch (ClassNotFoundException e) {
+            System.err.println("Unable to load caller class: " + e.getMessage());
+            ProfilerMetrics.get().resolutionFailed();
+            return new CallSite(null, null);
+        }
+        // seems like getDeclaredMethods is enough and we don't need to look up
+        // methods recursively because we can see the actual caller in the call stack
+        String name = elem.getMethodName();
+        // methods instrumented by ProfilingAgent are called by wrappers with the original name
+        if (name.endsWith(ProfilingTransformer.RENAMED_SUFFIX)) {
+            name = name.substring(0, name.length() - ProfilingTransformer.RENAMED_SUFFIX.length());
+        }
+        Method method = findMethod(caller.getDeclaredMethods(), name, args);
+        if (method == null) {
+            System.err.println("Unable to find caller method " + name);
+            ProfilerMetrics.get().resolutionFailed();
+        }
+        return new CallSite(caller, method);
+    }
+
+    private static Method findMethod(Method[] methods, String name, Object[] args) {
+        for (Method m : methods) {
+            if (Objects.equals(m.getName(), name) && accepts(m, args)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static boolean accepts(Method m, Object[] args) {
+        if (m == null || m.getParameterCount() != args.length) {
+            return false;
+        }
+        Class<?>[] params = m.getParameterTypes();
+        // even though there might be null args and we can't get their type tokens
+        // we still get no ambiguities here
+        // we also need unwrapping here because varargs in stepIn box primitives
+        for (int i = 0; i < params.length; i++) {
+            if (args[i] != null && !args[i].getClass().equals(Util.unwrap(params[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
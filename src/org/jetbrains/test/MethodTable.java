@@ -0,0 +1,43 @@
+package org.jetbrains.test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Assigns int ids to call sites so that they fit into fixed size records.
+ * Ids are positive, unique within the JVM and never reused.
+ */
+final class MethodTable {
+    private static final Map<CallSite, Integer> IDS = new ConcurrentHashMap<>();
+    // index = id - 1
+    private static final List<CallSite> SITES = new CopyOnWriteArrayList<>();
+
+    private MethodTable() {
+    }
+
+    static int idOf(CallSite site) {
+        int id = site.id;
+        if (id == 0) {
+            id = register(site);
+            site.id = id;
+        }
+        return id;
+    }
+
+    static CallSite get(int id) {
+        return SITES.get(id - 1);
+    }
+
+    // happens once per call site, so there is no need to avoid locking here
+    private static synchronized int register(CallSite site) {
+        Integer id = IDS.get(site);
+        if (id == null) {
+            SITES.add(site);
+            id = SITES.size();
+            IDS.put(site, id);
+        }
+        return id;
+    }
+}
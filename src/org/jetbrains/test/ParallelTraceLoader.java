@@ -0,0 +1,198 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Parses files written with {@link CallTree#write(OutputStream)} in parallel on a fork-join pool.
+ * Trees are located with {@link TraceIndex}, consecutive small trees are parsed together
+ * so that classes and methods are not looked up again for every tree.
+ * Files written by {@link CompressedTraceWriter} are parsed block by block in parallel.
+ */
+public class ParallelTraceLoader {
+    // trees are grouped into chunks at least that large
+    private static final int CHUNK_SIZE = 1 << 18;
+    private static final ProfilerMetrics METRICS = ProfilerMetrics.get();
+
+    private final ForkJoinPool pool;
+
+    public ParallelTraceLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelTraceLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public List<CallTree> load(File f) throws IOException {
+        return run(() -> loadFile(f));
+    }
+
+    /**
+     * Loads all files in parallel, trees of every file are loaded in parallel too.
+     *
+     * @return trees by file in the order of the given files
+     */
+    public Map<File, List<CallTree>> loadAll(List<File> files) throws IOException {
+        List<List<CallTree>> trees = run(() -> files.parallelStream()
+                .map(this::loadFile)
+                .collect(Collectors.toList()));
+        Map<File, List<CallTree>> result = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            result.put(files.get(i), trees.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Loads only one tree of the file.
+     */
+    public static CallTree loadTree(File f, int tree) throws IOException {
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        CallTree result;
+        // only bytes that are read are counted, not the whole file
+        long bytes;
+        if (CompressedTraceReader.isCompressed(f)) {
+            try (CompressedTraceReader reader = new CompressedTraceReader(f)) {
+                result = reader.read(tree);
+                bytes = reader.blockOf(tree).compressedLength;
+            }
+        } else {
+            TraceIndex index = TraceIndex.of(f);
+            if (tree < 0 || tree >= index.size()) {
+                throw new IndexOutOfBoundsException("file " + f + " has " + index.size() + " trees");
+            }
+            try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                result = parse(f, channel, index, tree, tree + 1).get(0);
+            }
+            bytes = index.end(tree) - index.start(tree);
+        }
+        if (start != 0) {
+            METRICS.parsed(bytes, System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Compares trees in parallel.
+     *
+     * @return indices of trees that are different or present only in one of the lists
+     */
+    public List<Integer> compare(List<? extends AbstractCallTree<?>> expected, List<? extends AbstractCallTree<?>> actual) {
+        return pool.submit(() -> IntStream.range(0, Math.max(expected.size(), actual.size()))
+                .parallel()
+                .filter(i -> i >= expected.size() || i >= actual.size()
+                        || !expected.get(i).equals(actual.get(i)))
+                .boxed()
+                .collect(Collectors.toList())).join();
+    }
+
+    // parallel streams run in the pool they are started from
+    private <T> T run(Supplier<T> task) throws IOException {
+        try {
+            return pool.submit(task::get).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading trees");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private List<CallTree> loadFile(File f) {
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        List<CallTree> result = readFile(f);
+        if (start != 0) {
+            METRICS.parsed(f.length(), System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    private List<CallTree> readFile(File f) {
+        try {
+            if (CompressedTraceReader.isCompressed(f)) {
+                return loadCompressed(f);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            TraceIndex index = TraceIndex.of(f);
+            // bounds of chunks in tree indices
+            List<Integer> bounds = new ArrayList<>();
+            bounds.add(0);
+            for (int i = 1; i <= index.size(); i++) {
+                if (i == index.size() || index.end(i - 1) - index.start(bounds.get(bounds.size() - 1)) >= CHUNK_SIZE) {
+                    bounds.add(i);
+                }
+            }
+            return IntStream.range(0, bounds.size() - 1)
+                    .parallel()
+                    .mapToObj(i -> {
+                        try {
+                            return parse(f, channel, index, bounds.get(i), bounds.get(i + 1));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<CallTree> loadCompressed(File f) throws IOException {
+        try (CompressedTraceReader reader = new CompressedTraceReader(f)) {
+            return IntStream.range(0, reader.blockCount())
+                    .parallel()
+                    .mapToObj(i -> {
+                        try {
+                            return reader.readBlock(i);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // positional reads don't change the position of the channel, so it can be shared between threads
+    private static List<CallTree> parse(File f, FileChannel channel, TraceIndex index,
+                                        int from, int to) throws IOException {
+        long start = index.start(from);
+        long length = index.end(to - 1) - start;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("tree " + from + " of " + f + " is too large");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("file " + f + " is shorter than its index");
+            }
+        }
+        List<CallTree> trees = new ArrayList<>(to - from);
+        CallTree.parse(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(buffer.array()), StandardCharsets.UTF_8)), CallTreeBuilder.into(trees));
+        if (trees.size() != to - from) {
+            throw new IOException("unable to parse trees " + from + ".." + (to - 1) + " of " + f);
+        }
+        return trees;
+    }
+}
@@ -0,0 +1,386 @@
+package org.jetbrains.test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Costs of the profiler itself: how many calls are recorded, how long stepIn and closing
+ * of {@link CallTree.Overseer} take, how much memory recorded trees hold and how fast
+ * trees are written and parsed. Metrics are shared by all trees.
+ * <p>
+ * Writing and parsing are measured where trees reach or leave a file or a socket: by the trace writers,
+ * {@link CallTree#parse(File, CallTreeVisitor)}, {@link ParallelTraceLoader} and the spool of {@link TraceCollector}.
+ * Trees written to memory are not counted, and neither are trees received by the collector over connections,
+ * their time is mostly spent waiting for producers. Retained entries are only those recorded by
+ * {@link CallTree#stepIn(CallSite, Object...)} and not cleared yet, parsed, copied and built trees are not counted.
+ * <p>
+ * Metrics are collected only when they are {@link #setEnabled(boolean) enabled}, so that
+ * profiled code doesn't pay for them otherwise, failed resolutions of classes and methods are always counted.
+ * Counters are striped and never block recording threads. Metrics are available as a platform MXBean,
+ * see {@link #register()}, and can be logged periodically, see {@link #startLogging(long, TimeUnit)}.
+ */
+public final class ProfilerMetrics implements ProfilerMetricsMXBean {
+    public static final String OBJECT_NAME = "org.jetbrains.test:type=ProfilerMetrics";
+    private static final ProfilerMetrics INSTANCE = new ProfilerMetrics();
+
+    private volatile boolean enabled;
+
+    private final LongAdder stepIns = new LongAdder();
+    private final LongAdder recordedCalls = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder argumentChars = new LongAdder();
+    private final LongAdder resolutionFailures = new LongAdder();
+    private final LongAdder writtenTrees = new LongAdder();
+    private final LongAdder writtenBytes = new LongAdder();
+    private final LongAdder parsedFiles = new LongAdder();
+    private final LongAdder parsedBytes = new LongAdder();
+    private final Histogram stepIn = new Histogram();
+    private final Histogram stepOut = new Histogram();
+    private final Histogram write = new Histogram();
+    private final Histogram parse = new Histogram();
+
+    private ScheduledExecutorService logger;
+    private ScheduledFuture<?> logging;
+    private boolean registered;
+
+    private ProfilerMetrics() {
+    }
+
+    public static ProfilerMetrics get() {
+        return INSTANCE;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Registers metrics in the platform MBean server as {@link #OBJECT_NAME}, does nothing if it's done already.
+     */
+    public synchronized void register() throws JMException {
+        if (!registered) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+            registered = true;
+        }
+    }
+
+    /**
+     * Enables metrics and writes them to System.err with the given period, see {@link #toString()}.
+     */
+    public synchronized void startLogging(long period, TimeUnit unit) {
+        stopLogging();
+        enabled = true;
+        if (logger == null) {
+            logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "profiler metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        logging = logger.scheduleAtFixedRate(() -> System.err.println("profiler: " + this), period, period, unit);
+    }
+
+    public synchronized void stopLogging() {
+        if (logging != null) {
+            logging.cancel(false);
+            logging = null;
+        }
+    }
+
+    @Override
+    public long getStepIns() {
+        return stepIns.sum();
+    }
+
+    @Override
+    public long getRecordedCalls() {
+        return recordedCalls.sum();
+    }
+
+    @Override
+    public long getRetainedEntries() {
+        return entries.sum();
+    }
+
+    @Override
+    public long getRetainedArgumentChars() {
+        return argumentChars.sum();
+    }
+
+    @Override
+    public long getResolutionFailures() {
+        return resolutionFailures.sum();
+    }
+
+    @Override
+    public long getWrittenTrees() {
+        return writtenTrees.sum();
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    @Override
+    public long getParsedFiles() {
+        return parsedFiles.sum();
+    }
+
+    @Override
+    public long getParsedBytes() {
+        return parsedBytes.sum();
+    }
+
+    @Override
+    public Latency getStepInLatency() {
+        return stepIn.latency();
+    }
+
+    @Override
+    public Latency getStepOutLatency() {
+        return stepOut.latency();
+    }
+
+    @Override
+    public Latency getWriteLatency() {
+        return write.latency();
+    }
+
+    @Override
+    public Latency getParseLatency() {
+        return parse.latency();
+    }
+
+    /**
+     * Resets all metrics. Retained entries and argument chars start from zero too,
+     * so they become negative when trees recorded before that are cleared.
+     */
+    @Override
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{stepIns, recordedCalls, entries, argumentChars, resolutionFailures,
+                writtenTrees, writtenBytes, parsedFiles, parsedBytes}) {
+            adder.reset();
+        }
+        for (Histogram histogram : new Histogram[]{stepIn, stepOut, write, parse}) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * @return all metrics in one line
+     */
+    @Override
+    public String toString() {
+        return String.format("%d stepIns, %d recorded calls, %d entries, %d argument chars, %d resolution failures, "
+                        + "stepIn %s, stepOut %s, write %d trees %s, parse %d files %s",
+                getStepIns(), getRecordedCalls(), getRetainedEntries(), getRetainedArgumentChars(),
+                getResolutionFailures(), stepIn.latency(), stepOut.latency(),
+                getWrittenTrees(), throughput(getWrittenBytes(), write), getParsedFiles(), throughput(getParsedBytes(), parse));
+    }
+
+    private static String throughput(long bytes, Histogram histogram) {
+        long nanos = histogram.sum.sum();
+        double mbPerSecond = nanos == 0 ? 0 : bytes * 1e3 / nanos;
+        return String.format("%d bytes (%.1f MB/s)", bytes, mbPerSecond);
+    }
+
+    void stepIn(boolean recorded, long nanos) {
+        stepIns.increment();
+        if (recorded) {
+            recordedCalls.increment();
+        }
+        stepIn.record(nanos);
+    }
+
+    void stepOut(long nanos) {
+        stepOut.record(nanos);
+    }
+
+    void entryAdded(String[] args) {
+        entries.increment();
+        argumentsRendered(args);
+    }
+
+    void argumentsRendered(String[] args) {
+        long chars = chars(args);
+        if (chars != 0) {
+            argumentChars.add(chars);
+        }
+    }
+
+    void entriesRemoved(long count, long chars) {
+        entries.add(-count);
+        argumentChars.add(-chars);
+    }
+
+    void resolutionFailed() {
+        resolutionFailures.increment();
+    }
+
+    void written(long trees, long bytes, long nanos) {
+        writtenTrees.add(trees);
+        writtenBytes.add(bytes);
+        write.record(nanos);
+    }
+
+    void parsed(long bytes, long nanos) {
+        parsedFiles.increment();
+        parsedBytes.add(bytes);
+        parse.record(nanos);
+    }
+
+    static long chars(String[] args) {
+        long result = 0;
+        if (args != null) {
+            for (String arg : args) {
+                result += arg == null ? 0 : arg.length();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Latencies of an operation, percentiles are upper bounds of power of two buckets.
+     */
+    public static class Latency {
+        private final long count;
+        private final long meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+
+        @ConstructorProperties({"count", "meanNanos", "p50Nanos", "p99Nanos", "maxNanos"})
+        public Latency(long count, long meanNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean %d ns, p50 %d ns, p99 %d ns, max %d ns", meanNanos, p50Nanos, p99Nanos, maxNanos);
+        }
+    }
+
+    // bucket i counts durations shorter than 2^i ns
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        Latency latency() {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            long max = this.max.get();
+            return new Latency(count, count == 0 ? 0 : sum.sum() / count,
+                    percentile(counts, count, 0.5, max), percentile(counts, count, 0.99, max), max);
+        }
+
+        private static long percentile(long[] counts, long count, double p, long max) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+                }
+            }
+            return max;
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            sum.reset();
+            max.reset();
+        }
+    }
+
+    /**
+     * Counts bytes written by {@link CallTree#write(OutputStream)}.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
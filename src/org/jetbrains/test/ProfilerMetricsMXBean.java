@@ -0,0 +1,51 @@
+package org.jetbrains.test;
+
+/**
+ * Management interface of {@link ProfilerMetrics}, see {@link ProfilerMetrics#register()}.
+ */
+public interface ProfilerMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return all calls of stepIn, including calls that are filtered out
+     */
+    long getStepIns();
+
+    long getRecordedCalls();
+
+    /**
+     * @return entries that are recorded by trees and not removed by {@link CallTree#clear()},
+     * parsed and copied trees are not counted
+     */
+    long getRetainedEntries();
+
+    /**
+     * @return length of argument strings kept by entries that are not removed by {@link CallTree#clear()}
+     */
+    long getRetainedArgumentChars();
+
+    /**
+     * @return classes and methods that could not be found while recording or reading trees
+     */
+    long getResolutionFailures();
+
+    long getWrittenTrees();
+
+    long getWrittenBytes();
+
+    long getParsedFiles();
+
+    long getParsedBytes();
+
+    ProfilerMetrics.Latency getStepInLatency();
+
+    ProfilerMetrics.Latency getStepOutLatency();
+
+    ProfilerMetrics.Latency getWriteLatency();
+
+    ProfilerMetrics.Latency getParseLatency();
+
+    void reset();
+}
@@ -0,0 +1,284 @@
+package org.jetbrains.test;
+
+import javax.management.JMException;
+import java.io.*;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java agent that instruments methods when their classes are loaded, so that they don't need
+ * {@link CallTree#stepIn(Object...)} calls:
+ * <pre>
+ * <code>java -javaagent:agent.jar=include=org.example.*,exclude=org.example.Util.*,output=calls.txt ...</code></pre>
+ * Options are separated by commas:
+ * <ul>
+ * <li>include and exclude are patterns of {@link CallFilter}, both can be repeated.
+ * At least one include is required</li>
+ * <li>output is the file where trees of all threads are written at shutdown, agent.txt by default</li>
+ * <li>aggregate=true merges repeated calls, see {@link CallTreeSettings#setAggregating(boolean)}</li>
+ * <li>metrics=n enables {@link ProfilerMetrics}, registers its MXBean and logs metrics every n seconds,
+ * metrics=0 doesn't log them</li>
+ * <li>collector=[host:]port sends every top level call to {@link TraceCollector} as soon as it ends,
+ * calls must not be aggregated then. Sent calls are not kept in memory, so the output is not written.
+ * At shutdown the agent waits for the rest of the calls to be sent for at most 10 seconds</li>
+ * <li>spool is the directory of {@link TraceCollector} where trees of all threads are written at shutdown too.
+ * It can't be used together with collector, because calls would be merged twice</li>
+ * </ul>
+ * Every instrumented method gets an id when its class is loaded, the id and arguments are passed
+ * to {@link #enter(int, Object[])}, so neither the call stack nor reflection is used while recording,
+ * see {@link ProfilingTransformer}. Classes loaded by the bootstrap class loader, interfaces,
+ * constructors and classes of the profiler package {@code org.jetbrains.test} are not instrumented.
+ */
+public final class ProfilingAgent {
+    private static final ConcurrentCallTree CALL_TREE = new ConcurrentCallTree();
+    private static final long SENDER_CLOSE_TIMEOUT_MILLIS = 10_000;
+    // index = id
+    private static final List<MethodRef> METHODS = new CopyOnWriteArrayList<>();
+
+    private ProfilingAgent() {
+    }
+
+    public static void premain(String options, Instrumentation instrumentation) {
+        CallFilter filter = CallFilter.all();
+        boolean included = false;
+        File output = new File("agent.txt");
+        String collector = null;
+        File spool = null;
+        for (String option : options == null ? new String[0] : options.split(",")) {
+            int eq = option.indexOf('=');
+            String key = eq < 0 ? option : option.substring(0, eq);
+            String value = eq < 0 ? "" : option.substring(eq + 1);
+            switch (key) {
+                case "include":
+                    filter = filter.include(value);
+                    included = true;
+                    break;
+                case "exclude":
+                    filter = filter.exclude(value);
+                    break;
+                case "output":
+                    output = new File(value);
+                    break;
+                case "aggregate":
+                    CALL_TREE.getSettings().setAggregating(Boolean.parseBoolean(value));
+                    break;
+                case "metrics":
+                    enableMetrics(value);
+                    break;
+                case "collector":
+                    collector = value;
+                    break;
+                case "spool":
+                    spool = new File(value);
+                    break;
+                default:
+                    System.err.println("unknown agent option " + option);
+            }
+        }
+        if (!included) {
+            System.err.println("no methods are included, nothing will be profiled");
+            return;
+        }
+        AsyncTraceWriter sender = collector == null ? null : connect(collector);
+        if (sender != null && spool != null) {
+            System.err.println("calls are sent to the collector, spool is ignored");
+            spool = null;
+        }
+        instrumentation.addTransformer(new ProfilingTransformer(filter));
+        File file = output;
+        File spoolDir = spool;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // sent calls are not kept, the output would have only calls that are running now
+            if (sender == null) {
+                write(file);
+            }
+            if (spoolDir != null) {
+                spool(spoolDir);
+            }
+            if (sender != null) {
+                close(sender);
+            }
+        }, "profiler shutdown"));
+    }
+
+    // a collector that stops reading must not keep the application from exiting
+    private static void close(AsyncTraceWriter sender) {
+        Thread closing = new Thread(() -> {
+            try {
+                sender.close();
+            } catch (IOException e) {
+                System.err.println("can not send calls to the collector: " + e.getMessage());
+            }
+        }, "profiler sender shutdown");
+        closing.setDaemon(true);
+        closing.start();
+        try {
+            closing.join(SENDER_CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closing.isAlive()) {
+            System.err.println("calls are not sent to the collector in time, the rest of them are lost");
+        }
+    }
+
+    private static AsyncTraceWriter connect(String address) {
+        if (CALL_TREE.getSettings().isAggregating()) {
+            System.err.println("aggregated calls can not be sent to the collector");
+            return null;
+        }
+        int colon = address.lastIndexOf(':');
+        try {
+            String host = colon < 0 ? "localhost" : address.substring(0, colon);
+            int port = Integer.parseInt(address.substring(colon + 1));
+            AsyncTraceWriter sender = AsyncTraceWriter.connect(new InetSocketAddress(host, port));
+            CALL_TREE.getSettings().setRootCallListener(sender);
+            // otherwise trees would grow for as long as the application runs
+            CALL_TREE.getSettings().setRetainingRootCalls(false);
+            return sender;
+        } catch (NumberFormatException e) {
+            System.err.println("collector should be [host:]port: " + address);
+        } catch (IOException e) {
+            System.err.println("can not connect to the collector " + address + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static void enableMetrics(String period) {
+        ProfilerMetrics metrics = ProfilerMetrics.get();
+        metrics.setEnabled(true);
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            System.err.println("unable to register profiler metrics: " + e.getMessage());
+        }
+        try {
+            long seconds = Long.parseLong(period);
+            if (seconds > 0) {
+                metrics.startLogging(seconds, TimeUnit.SECONDS);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("metrics period should be a number of seconds: " + period);
+        }
+    }
+
+    /**
+     * Called by instrumented methods instead of {@link CallTree#stepIn(Object...)}.
+     */
+    public static CallTree.Overseer enter(int id, Object[] args) {
+        return CALL_TREE.stepIn(METHODS.get(id).site(), args);
+    }
+
+    public static ConcurrentCallTree getCallTree() {
+        return CALL_TREE;
+    }
+
+    static synchronized int register(ClassLoader loader, String className, String name, String descriptor) {
+        METHODS.add(new MethodRef(loader, className, name, descriptor));
+        return METHODS.size() - 1;
+    }
+
+    private static void write(File output) {
+        try (TextTraceWriter writer = new TextTraceWriter(output)) {
+            for (CallTree tree : CALL_TREE.getTrees().values()) {
+                writer.write(tree);
+            }
+        } catch (IOException e) {
+            System.err.println("can not write profiling results: " + e.getMessage());
+        }
+    }
+
+    // the file is renamed when it's complete, so that the collector doesn't read it earlier
+    private static void spool(File dir) {
+        String name = ManagementFactory.getRuntimeMXBean().getName() + "-" + System.currentTimeMillis();
+        File tmp = new File(dir, name + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+            for (CallTree tree : CALL_TREE.getTrees().values()) {
+                TextTraceWriter.write(tree, out);
+            }
+        } catch (IOException e) {
+            System.err.println("can not write profiling results to " + dir + ": " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(new File(dir, name + ".txt"))) {
+            System.err.println("can not rename " + tmp);
+        }
+    }
+
+    // classes are not loaded yet when ids are assigned, so methods are looked up on the first call
+    private static class MethodRef {
+        // class loaders are kept forever, as well as profiling data that refers to their classes
+        private final ClassLoader loader;
+        private final String className;
+        private final String name;
+        private final String descriptor;
+        private volatile CallSite site;
+
+        MethodRef(ClassLoader loader, String className, String name, String descriptor) {
+            this.loader = loader;
+            this.className = className;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        CallSite site() {
+            CallSite result = site;
+            if (result == null) {
+                result = resolve();
+                site = result;
+            }
+            return result;
+        }
+
+        private CallSite resolve() {
+            try {
+                Class<?> caller = Class.forName(className, false, loader);
+                for (Method m : caller.getDeclaredMethods()) {
+                    if (m.getName().equals(name) && descriptor(m).equals(descriptor)) {
+                        return new CallSite(caller, m);
+                    }
+                }
+                System.err.println("Unable to find instrumented method " + className + "." + name + descriptor);
+                ProfilerMetrics.get().resolutionFailed();
+                return new CallSite(caller, null);
+            } catch (ClassNotFoundException e) {
+                System.err.println("Unable to load instrumented class: " + e.getMessage());
+                ProfilerMetrics.get().resolutionFailed();
+                return new CallSite(null, null);
+            }
+        }
+
+        private static String descriptor(Method m) {
+            StringBuilder sb = new StringBuilder("(");
+            for (Class<?> param : m.getParameterTypes()) {
+                sb.append(descriptor(param));
+            }
+            return sb.append(')').append(descriptor(m.getReturnType())).toString();
+        }
+
+        private static String descriptor(Class<?> type) {
+            if (type.isArray()) {
+                return type.getName().replace('.', '/');
+            }
+            if (!type.isPrimitive()) {
+                return "L" + type.getName().replace('.', '/') + ";";
+            }
+            switch (type.getName()) {
+                case "boolean":
+                    return "Z";
+                case "long":
+                    return "J";
+                case "void":
+                    return "V";
+                default:
+                    // byte, char, short, int, float and double
+                    return String.valueOf(Character.toUpperCase(type.getName().charAt(0)));
+            }
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instruments methods selected by a {@link CallFilter} for {@link ProfilingAgent}.
+ * Method {@code m} is renamed to {@code m$profiled} and a new method {@code m} with the same signature
+ * and attributes is added, which is the same as
+ * <pre>
+ * <code>CallTree.Overseer overseer = ProfilingAgent.enter(id, new Object[]{args...});
+ * try {
+ *     return m$profiled(args...);
+ * } finally {
+ *     overseer.close();
+ * } </code></pre>
+ * Class files are edited directly, only the constant pool and the list of methods are changed,
+ * everything else is copied as is.
+ */
+final class ProfilingTransformer implements ClassFileTransformer {
+    static final String RENAMED_SUFFIX = "$profiled";
+
+    // classes of the profiler are used while recording, instrumenting them would lead to endless recursion.
+    // the whole package is skipped, so that new classes don't have to be listed anywhere
+    private static final String PROFILER_PACKAGE = "org/jetbrains/test/";
+    private static final String HOOK_OWNER = "org/jetbrains/test/ProfilingAgent";
+    private static final String HOOK_DESCRIPTOR = "(I[Ljava/lang/Object;)Lorg/jetbrains/test/CallTree$Overseer;";
+    private static final String OVERSEER = "org/jetbrains/test/CallTree$Overseer";
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_SYNCHRONIZED = 0x0020;
+    private static final int ACC_BRIDGE = 0x0040;
+    private static final int ACC_NATIVE = 0x0100;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+    private static final int ACC_STRICT = 0x0800;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private final CallFilter filter;
+
+    ProfilingTransformer(CallFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // bootstrap classes can't see the profiler
+        if (loader == null || className == null || classBeingRedefined != null || isProfilerClass(className)) {
+            return null;
+        }
+        try {
+            return new ClassEditor(loader, classfileBuffer).edit();
+        } catch (RuntimeException | IOException e) {
+            // the class is loaded as is then
+            System.err.println("unable to instrument " + className + ": " + e);
+            return null;
+        }
+    }
+
+    // sub-packages such as benchmarks are skipped too
+    private static boolean isProfilerClass(String className) {
+        return className.startsWith(PROFILER_PACKAGE);
+    }
+
+    private class ClassEditor {
+        private final ClassLoader loader;
+        private final byte[] bytes;
+        private int position;
+
+        // utf8 constants by index, other constants are not needed
+        private final Map<Integer, String> utf8 = new HashMap<>();
+        private final Map<Integer, Integer> classNames = new HashMap<>();
+        private int constantCount;
+        private final ByteArrayOutputStream newConstants = new ByteArrayOutputStream();
+        private final DataOutputStream constants = new DataOutputStream(newConstants);
+        private final Map<String, Integer> added = new HashMap<>();
+
+        private String className;
+        private int thisClass;
+        private int major;
+
+        ClassEditor(ClassLoader loader, byte[] bytes) {
+            this.loader = loader;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return edited class file or null if nothing is instrumented
+         */
+        byte[] edit() throws IOException {
+            if (u4() != 0xCAFEBABE) {
+                throw new IOException("not a class file");
+            }
+            u2();
+            major = u2();
+            constantCount = u2();
+            readConstants();
+            int constantsEnd = position;
+            int access = u2();
+            thisClass = u2();
+            className = utf8.get(classNames.get(thisClass));
+            if ((access & ACC_INTERFACE) != 0) {
+                return null;
+            }
+            u2();
+            int interfaceCount = u2();
+            position += 2 * interfaceCount;
+            int fieldCount = u2();
+            for (int i = 0; i < fieldCount; i++) {
+                skipMember();
+            }
+            int methodsStart = position;
+            int methodCount = u2();
+
+            ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+            DataOutputStream methods = new DataOutputStream(methodBytes);
+            int newMethodCount = methodCount;
+            for (int i = 0; i < methodCount; i++) {
+                int start = position;
+                int methodAccess = u2();
+                String name = utf8.get(u2());
+                String descriptor = utf8.get(u2());
+                skipAttributes();
+                if (!shouldInstrument(methodAccess, name)) {
+                    methods.write(bytes, start, position - start);
+                    continue;
+                }
+                instrument(methods, start, methodAccess, name, descriptor);
+                newMethodCount++;
+            }
+            if (newMethodCount == methodCount) {
+                return null;
+            }
+            int attributesStart = position;
+            if (constantCount > 0xFFFF) {
+                throw new IOException("too many constants");
+            }
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length + methodBytes.size());
+            DataOutputStream out = new DataOutputStream(result);
+            out.write(bytes, 0, 8);
+            out.writeShort(constantCount);
+            out.write(bytes, 10, constantsEnd - 10);
+            out.write(newConstants.toByteArray());
+            out.write(bytes, constantsEnd, methodsStart - constantsEnd);
+            out.writeShort(newMethodCount);
+            methodBytes.writeTo(out);
+            out.write(bytes, attributesStart, bytes.length - attributesStart);
+            return result.toByteArray();
+        }
+
+        private boolean shouldInstrument(int access, String name) {
+            return (access & (ACC_ABSTRACT | ACC_NATIVE | ACC_BRIDGE | ACC_SYNTHETIC)) == 0
+                    && !name.startsWith("<") && !name.endsWith(RENAMED_SUFFIX)
+                    && filter.accepts(className.replace('/', '.'), name);
+        }
+
+        private void instrument(DataOutputStream methods, int start, int access,
+                                String name, String descriptor) throws IOException {
+            // the original method is copied under the new name with only its code
+            position = start + 6;
+            int attributeCount = u2();
+            List<int[]> otherAttributes = new ArrayList<>();
+            int code = -1;
+            for (int i = 0; i < attributeCount; i++) {
+                int attributeStart = position;
+                String attributeName = utf8.get(u2());
+                int length = u4();
+                position += length;
+                if ("Code".equals(attributeName)) {
+                    code = attributeStart;
+                } else {
+                    otherAttributes.add(new int[]{attributeStart, position});
+                }
+            }
+            int end = position;
+            methods.writeShort(access & (ACC_STATIC | ACC_SYNCHRONIZED | ACC_STRICT) | ACC_PRIVATE | ACC_SYNTHETIC);
+            methods.writeShort(utf8(name + RENAMED_SUFFIX));
+            methods.writeShort(utf8(descriptor));
+            methods.writeShort(1);
+            methods.write(bytes, code, 6 + readInt(code + 2));
+
+            // the wrapper takes place of the original method with all its attributes except the code
+            methods.writeShort(access & ~ACC_SYNCHRONIZED);
+            methods.writeShort(utf8(name));
+            methods.writeShort(utf8(descriptor));
+            methods.writeShort(otherAttributes.size() + 1);
+            for (int[] attribute : otherAttributes) {
+                methods.write(bytes, attribute[0], attribute[1] - attribute[0]);
+            }
+            int id = ProfilingAgent.register(loader, className.replace('/', '.'), name, descriptor);
+            writeWrapperCode(methods, (access & ACC_STATIC) != 0, name, descriptor, id);
+            position = end;
+        }
+
+        private void writeWrapperCode(DataOutputStream out, boolean isStatic,
+                                      String name, String descriptor, int id) throws IOException {
+            List<String> params = parameters(descriptor);
+            String returnType = descriptor.substring(descriptor.indexOf(')') + 1);
+            int firstParam = isStatic ? 0 : 1;
+            int paramSlots = firstParam;
+            for (String param : params) {
+                paramSlots += size(param);
+            }
+            int overseer = paramSlots;
+            int throwable = paramSlots + 1;
+
+            ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+            DataOutputStream code = new DataOutputStream(codeBytes);
+            code.writeByte(0x13); // ldc_w
+            code.writeShort(integer(id));
+            code.writeByte(0x11); // sipush
+            code.writeShort(params.size());
+            code.writeByte(0xBD); // anewarray
+            code.writeShort(classRef("java/lang/Object"));
+            int slot = firstParam;
+            for (int i = 0; i < params.size(); i++) {
+                String param = params.get(i);
+                code.writeByte(0x59); // dup
+                code.writeByte(0x11); // sipush
+                code.writeShort(i);
+                load(code, param, slot);
+                box(code, param);
+                code.writeByte(0x53); // aastore
+                slot += size(param);
+            }
+            code.writeByte(0xB8); // invokestatic
+            code.writeShort(methodRef(HOOK_OWNER, "enter", HOOK_DESCRIPTOR, false));
+            localInstruction(code, 0x3A, overseer); // astore
+
+            int tryStart = code.size();
+            if (!isStatic) {
+                code.writeByte(0x2A); // aload_0
+            }
+            slot = firstParam;
+            for (String param : params) {
+                load(code, param, slot);
+                slot += size(param);
+            }
+            code.writeByte(isStatic ? 0xB8 : 0xB7); // invokestatic or invokespecial
+            code.writeShort(methodRef(className, name + RENAMED_SUFFIX, descriptor, false));
+            int tryEnd = code.size();
+            closeOverseer(code, overseer);
+            code.writeByte(returnOpcode(returnType));
+
+            int handler = code.size();
+            localInstruction(code, 0x3A, throwable); // astore
+            closeOverseer(code, overseer);
+            localInstruction(code, 0x19, throwable); // aload
+            code.writeByte(0xBF); // athrow
+
+            ByteArrayOutputStream attributeBytes = new ByteArrayOutputStream();
+            DataOutputStream attribute = new DataOutputStream(attributeBytes);
+            // while arguments are boxed there are id, array, array, index and value which may take two slots
+            attribute.writeShort(Math.max(6, paramSlots));
+            attribute.writeShort(paramSlots + 2);
+            attribute.writeInt(code.size());
+            codeBytes.writeTo(attribute);
+            attribute.writeShort(1);
+            attribute.writeShort(tryStart);
+            attribute.writeShort(tryEnd);
+            attribute.writeShort(handler);
+            attribute.writeShort(0);
+            // since Java 7 the only branch target, which is the exception handler, needs a stack map frame
+            if (major >= 50) {
+                attribute.writeShort(1);
+                writeStackMap(attribute, isStatic, params, handler);
+            } else {
+                attribute.writeShort(0);
+            }
+            out.writeShort(utf8("Code"));
+            out.writeInt(attributeBytes.size());
+            attributeBytes.writeTo(out);
+        }
+
+        private void writeStackMap(DataOutputStream out, boolean isStatic, List<String> params,
+                                   int handler) throws IOException {
+            ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+            DataOutputStream frame = new DataOutputStream(frameBytes);
+            frame.writeShort(1);
+            frame.writeByte(255); // full_frame
+            frame.writeShort(handler);
+            frame.writeShort(params.size() + (isStatic ? 1 : 2));
+            if (!isStatic) {
+                frame.writeByte(7);
+                frame.writeShort(thisClass);
+            }
+            for (String param : params) {
+                verificationType(frame, param);
+            }
+            frame.writeByte(7);
+            frame.writeShort(classRef(OVERSEER));
+            frame.writeShort(1);
+            frame.writeByte(7);
+            frame.writeShort(classRef("java/lang/Throwable"));
+            out.writeShort(utf8("StackMapTable"));
+            out.writeInt(frameBytes.size());
+            frameBytes.writeTo(out);
+        }
+
+        private void verificationType(DataOutputStream out, String type) throws IOException {
+            switch (type.charAt(0)) {
+                case 'F':
+                    out.writeByte(2);
+                    break;
+                case 'D':
+                    out.writeByte(3);
+                    break;
+                case 'J':
+                    out.writeByte(4);
+                    break;
+                case 'L':
+                    out.writeByte(7);
+                    out.writeShort(classRef(type.substring(1, type.length() - 1)));
+                    break;
+                case '[':
+                    out.writeByte(7);
+                    out.writeShort(classRef(type));
+                    break;
+                default:
+                    // boolean, byte, char, short and int
+                    out.writeByte(1);
+            }
+        }
+
+        private void closeOverseer(DataOutputStream code, int overseer) throws IOException {
+            localInstruction(code, 0x19, overseer); // aload
+            code.writeByte(0xB9); // invokeinterface
+            code.writeShort(methodRef(OVERSEER, "close", "()V", true));
+            code.writeByte(1);
+            code.writeByte(0);
+        }
+
+        private void load(DataOutputStream code, String type, int slot) throws IOException {
+            switch (type.charAt(0)) {
+                case 'J':
+                    localInstruction(code, 0x16, slot); // lload
+                    break;
+                case 'F':
+                    localInstruction(code, 0x17, slot); // fload
+                    break;
+                case 'D':
+                    localInstruction(code, 0x18, slot); // dload
+                    break;
+                case 'L':
+                case '[':
+                    localInstruction(code, 0x19, slot); // aload
+                    break;
+                default:
+                    localInstruction(code, 0x15, slot); // iload
+            }
+        }
+
+        private void localInstruction(DataOutputStream code, int opcode, int slot) throws IOException {
+            if (slot > 0xFF) {
+                code.writeByte(0xC4); // wide
+                code.writeByte(opcode);
+                code.writeShort(slot);
+            } else {
+                code.writeByte(opcode);
+                code.writeByte(slot);
+            }
+        }
+
+        private void box(DataOutputStream code, String type) throws IOException {
+            String wrapper;
+            switch (type.charAt(0)) {
+                case 'Z':
+                    wrapper = "java/lang/Boolean";
+                    break;
+                case 'B':
+                    wrapper = "java/lang/Byte";
+                    break;
+                case 'C':
+                    wrapper = "java/lang/Character";
+                    break;
+                case 'S':
+                    wrapper = "java/lang/Short";
+                    break;
+                case 'I':
+                    wrapper = "java/lang/Integer";
+                    break;
+                case 'J':
+                    wrapper = "java/lang/Long";
+                    break;
+                case 'F':
+                    wrapper = "java/lang/Float";
+                    break;
+                case 'D':
+                    wrapper = "java/lang/Double";
+                    break;
+                default:
+                    return;
+            }
+            code.writeByte(0xB8); // invokestatic
+            code.writeShort(methodRef(wrapper, "valueOf", "(" + type + ")L" + wrapper + ";", false));
+        }
+
+        private int returnOpcode(String type) {
+            switch (type.charAt(0)) {
+                case 'V':
+                    return 0xB1;
+                case 'J':
+                    return 0xAD;
+                case 'F':
+                    return 0xAE;
+                case 'D':
+                    return 0xAF;
+                case 'L':
+                case '[':
+                    return 0xB0;
+                default:
+                    return 0xAC;
+            }
+        }
+
+        private int size(String type) {
+            return type.equals("J") || type.equals("D") ? 2 : 1;
+        }
+
+        private List<String> parameters(String descriptor) {
+            List<String> result = new ArrayList<>();
+            int i = 1;
+            while (descriptor.charAt(i) != ')') {
+                int start = i;
+                while (descriptor.charAt(i) == '[') {
+                    i++;
+                }
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                i++;
+                result.add(descriptor.substring(start, i));
+            }
+            return result;
+        }
+
+        private void readConstants() throws IOException {
+            for (int i = 1; i < constantCount; i++) {
+                int tag = u1();
+                switch (tag) {
+                    case 1: // utf8
+                        int length = u2();
+                        utf8.put(i, decodeUtf8(position, length));
+                        position += length;
+                        break;
+                    case 7: // class
+                        classNames.put(i, u2());
+                        break;
+                    case 8: // string
+                    case 16: // method type
+                    case 19: // module
+                    case 20: // package
+                        position += 2;
+                        break;
+                    case 15: // method handle
+                        position += 3;
+                        break;
+                    case 3: // integer
+                    case 4: // float
+                    case 9: // field ref
+                    case 10: // method ref
+                    case 11: // interface method ref
+                    case 12: // name and type
+                    case 17: // dynamic
+                    case 18: // invoke dynamic
+                        position += 4;
+                        break;
+                    case 5: // long
+                    case 6: // double
+                        position += 8;
+                        i++;
+                        break;
+                    default:
+                        throw new IOException("unknown constant " + tag + " at " + (position - 1));
+                }
+            }
+        }
+
+        // class files use modified UTF-8, which is what DataInputStream reads
+        private String decodeUtf8(int start, int length) throws IOException {
+            byte[] data = new byte[length + 2];
+            data[0] = (byte) (length >>> 8);
+            data[1] = (byte) length;
+            System.arraycopy(bytes, start, data, 2, length);
+            return new DataInputStream(new ByteArrayInputStream(data)).readUTF();
+        }
+
+        private int utf8(String s) throws IOException {
+            Integer index = added.get("utf8 " + s);
+            if (index == null) {
+                constants.writeByte(1);
+                constants.writeUTF(s);
+                index = addConstant("utf8 " + s);
+            }
+            return index;
+        }
+
+        private int classRef(String name) throws IOException {
+            Integer index = added.get("class " + name);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                constants.writeByte(7);
+                constants.writeShort(nameIndex);
+                index = addConstant("class " + name);
+            }
+            return index;
+        }
+
+        private int integer(int value) throws IOException {
+            Integer index = added.get("int " + value);
+            if (index == null) {
+                constants.writeByte(3);
+                constants.writeInt(value);
+                index = addConstant("int " + value);
+            }
+            return index;
+        }
+
+        private int methodRef(String owner, String name, String descriptor, boolean isInterface) throws IOException {
+            String key = "method " + owner + "." + name + descriptor;
+            Integer index = added.get(key);
+            if (index == null) {
+                int ownerIndex = owner.equals(className) ? thisClass : classRef(owner);
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                Integer nameAndType = added.get("nameAndType " + name + descriptor);
+                if (nameAndType == null) {
+                    constants.writeByte(12);
+                    constants.writeShort(nameIndex);
+                    constants.writeShort(descriptorIndex);
+                    nameAndType = addConstant("nameAndType " + name + descriptor);
+                }
+                constants.writeByte(isInterface ? 11 : 10);
+                constants.writeShort(ownerIndex);
+                constants.writeShort(nameAndType);
+                index = addConstant(key);
+            }
+            return index;
+        }
+
+        private int addConstant(String key) {
+            int index = constantCount++;
+            added.put(key, index);
+            return index;
+        }
+
+        private void skipMember() {
+            position += 6;
+            skipAttributes();
+        }
+
+        private void skipAttributes() {
+            int count = u2();
+            for (int i = 0; i < count; i++) {
+                position += 2;
+                int length = u4();
+                position += length;
+            }
+        }
+
+        private int readInt(int at) {
+            return (bytes[at] & 0xFF) << 24 | (bytes[at + 1] & 0xFF) << 16 | (bytes[at + 2] & 0xFF) << 8
+                    | bytes[at + 3] & 0xFF;
+        }
+
+        private int u1() {
+            return bytes[position++] & 0xFF;
+        }
+
+        private int u2() {
+            int result = (bytes[position] & 0xFF) << 8 | bytes[position + 1] & 0xFF;
+            position += 2;
+            return result;
+        }
+
+        private int u4() {
+            int result = readInt(position);
+            position += 4;
+            return result;
+        }
+    }
+}
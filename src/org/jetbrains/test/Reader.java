@@ -4,8 +4,6 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.IntStream;
 
 public class Reader {
     public static void main(String[] args) {
@@ -14,14 +12,17 @@ public class Reader {
             System.err.println("run Main to generate call trees first");
             return;
         }
+        ParallelTraceLoader loader = new ParallelTraceLoader();
         List<CallTree> trees;
         try {
-            trees = CallTree.parse(f);
+            trees = loader.load(f);
         } catch (IOException e) {
-            System.err.println("unable to parse trees from file");
+            System.err.println("unable to parse trees from file: " + e.getMessage());
             return;
         }
         trees.forEach(System.out::println);
+        System.out.println("hot methods:");
+        new CallTreeIndex(trees).topBySelfTime(3).forEach(System.out::println);
 
         List<CallTree> treesSerialized = new ArrayList<>();
         try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(new File("data.ser")))) {
@@ -36,19 +37,40 @@ public class Reader {
             System.err.println("unable to deserialize: " + e.getMessage());
         }
 
-        final boolean[] ok = {trees.size() == treesSerialized.size()};
-        if (!ok[0]) {
-            System.err.format("amount of trees parsed from text = %d and deserialized = %d",
+        List<CallTree> treesBinary = new ArrayList<>();
+        try (BinaryTraceReader reader = new BinaryTraceReader(new File("data.bin"))) {
+            treesBinary = reader.readAll();
+        } catch (IOException e) {
+            System.err.println("unable to read binary trace: " + e.getMessage());
+        }
+
+        List<Integer> differentBinary = loader.compare(trees, treesBinary);
+        if (!differentBinary.isEmpty()) {
+            System.out.println("oh no, parsed and binary trees are different: " + differentBinary);
+            return;
+        }
+
+        List<CallTree> treesCompressed = new ArrayList<>();
+        try {
+            treesCompressed = loader.load(new File("data.ctz"));
+        } catch (IOException e) {
+            System.err.println("unable to read compressed trace: " + e.getMessage());
+        }
+        List<Integer> differentCompressed = loader.compare(trees, treesCompressed);
+        if (!differentCompressed.isEmpty()) {
+            System.out.println("oh no, parsed and compressed trees are different: " + differentCompressed);
+            return;
+        }
+        if (trees.size() != treesSerialized.size()) {
+            System.err.format("amount of trees parsed from text = %d and deserialized = %d%n",
                     trees.size(), treesSerialized.size());
             return;
         }
-        IntStream.range(0, trees.size()).forEach(i ->
-                ok[0] |= Objects.equals(trees.get(i), treesSerialized.get(i)));
-        if (ok[0]) {
+        List<Integer> differentSerialized = loader.compare(trees, treesSerialized);
+        if (differentSerialized.isEmpty()) {
             System.out.println("well done, everything is fine");
         } else {
-            System.out.println("oh no, parsed and deserialized trees are different");
+            System.out.println("oh no, parsed and deserialized trees are different: " + differentSerialized);
         }
-
     }
 }
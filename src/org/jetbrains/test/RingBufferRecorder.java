@@ -0,0 +1,490 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Recorder for always-on profiling with constant memory usage.
+ * Usage is the same as for {@link CallTree}:
+ * <pre>
+ * <code>try (CallTree.Overseer ignored = recorder.stepIn(s)) {
+ *     // code here
+ * } </code></pre>
+ * Calls of all threads are stored as enter/exit events in a preallocated off-heap ring buffer,
+ * a background thread drains it to files {@code file.0}, {@code file.1} and so on.
+ * A new file is started when the current one exceeds the size limit and only the last
+ * few files are kept. If the buffer is full, new calls are either dropped together
+ * with all their callees or wait for free space, see {@link DropPolicy}.
+ * Arguments are not recorded.
+ * <p>
+ * Written files are turned back into call trees with {@link #readTrees(File...)}.
+ */
+public class RingBufferRecorder implements Closeable {
+    public enum DropPolicy {
+        /**
+         * Calls that don't fit into the buffer are not recorded. Space for exits of recorded calls
+         * is kept free, so instrumented code never waits.
+         */
+        DROP,
+        /**
+         * Instrumented code waits for the writer to free some space.
+         */
+        WAIT
+    }
+
+    static final int MAGIC = 0x43544531;
+    static final byte METHOD = 2;
+    static final byte ENTER = 5;
+    static final byte EXIT = 6;
+
+    // nanos, thread id, method id (0 for exit) and padding
+    private static final int RECORD_SIZE = 24;
+    private static final int EXIT_ID = 0;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final int capacity;
+    private final ByteBuffer records;
+    // sequence + 1 of the record stored in a slot, so that the writer knows it's complete
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final DropPolicy dropPolicy;
+    // with DROP policy, exits of recorded calls that are not in the buffer yet, new calls don't take their space
+    private final AtomicLong reservedExits = new AtomicLong();
+    private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+
+    private final LongAdder droppedCalls = new LongAdder();
+    private volatile long writtenEvents;
+
+    private final EventFileWriter writer;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity     amount of events in the buffer
+     * @param maxFileBytes size after which a new file is started
+     * @param maxFiles     amount of files to keep, older ones are deleted
+     */
+    public RingBufferRecorder(File file, int capacity, long maxFileBytes, int maxFiles,
+                              DropPolicy dropPolicy) throws IOException {
+        if (capacity <= 0 || maxFileBytes <= 0 || maxFiles <= 0) {
+            throw new IllegalArgumentException("capacity, file size and amount of files should be positive");
+        }
+        // the buffer is addressed with ints
+        if (capacity > Integer.MAX_VALUE / RECORD_SIZE) {
+            throw new IllegalArgumentException("capacity should be at most " + Integer.MAX_VALUE / RECORD_SIZE
+                    + " events: " + capacity);
+        }
+        this.capacity = capacity;
+        this.records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        this.published = new AtomicLongArray(capacity);
+        this.dropPolicy = dropPolicy;
+        this.writer = new EventFileWriter(file, maxFileBytes, maxFiles);
+        flusher = new Thread(this::flushLoop, "ring buffer flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public RingBufferRecorder(File file) throws IOException {
+        this(file, 1 << 16, 64 << 20, 4, DropPolicy.DROP);
+    }
+
+    public CallTree.Overseer stepIn(Object... args) {
+        // 2 frames we don't want to log -- MethodResolver.callSite and stepIn
+        return stepIn(MethodResolver.callSite(2, args), args);
+    }
+
+    public CallTree.Overseer stepIn(CallSite site, Object... args) {
+        ThreadState state = threadState.get();
+        if (state.dropped > 0 || !enter(state.threadId, MethodTable.idOf(site))) {
+            // callees of a dropped call are dropped as well, so the events stay balanced
+            if (state.dropped++ == 0) {
+                droppedCalls.increment();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return amount of top level calls dropped because the buffer was full
+     */
+    public long getDroppedCalls() {
+        return droppedCalls.sum();
+    }
+
+    public long getWrittenEvents() {
+        return writtenEvents;
+    }
+
+    /**
+     * Writes all recorded events and stops the writer.
+     * Calls that are still running at this moment are not finished in the files,
+     * calls made after that are dropped and never wait for the buffer.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+    /**
+     * Reads files written by the recorder in the given order.
+     *
+     * @return call tree of every thread, keyed by thread id
+     */
+    public static Map<Long, CallTree> readTrees(File... files) throws IOException {
+        Map<Long, CallTree> trees = new TreeMap<>();
+        for (File f : files) {
+            EventFileReader.read(f, trees);
+        }
+        return trees;
+    }
+
+    /**
+     * @return file with the given number written by a recorder created for the base file
+     */
+    public static File file(File base, int index) {
+        return new File(base.getPath() + "." + index);
+    }
+
+    private boolean enter(long threadId, int methodId) {
+        if (dropPolicy == DropPolicy.WAIT) {
+            return offer(threadId, methodId, false);
+        }
+        // the exit is reserved before the enter is offered, so that concurrent calls see it
+        reservedExits.incrementAndGet();
+        if (offer(threadId, methodId, true)) {
+            return true;
+        }
+        reservedExits.decrementAndGet();
+        return false;
+    }
+
+    private boolean offer(long threadId, int methodId, boolean mayDrop) {
+        long seq;
+        while (true) {
+            seq = head.get();
+            if (!running) {
+                // nobody drains the buffer anymore
+                return false;
+            }
+            // a call that may be dropped leaves space for exits of running calls, its own one included
+            long limit = mayDrop ? capacity - reservedExits.get() : capacity;
+            if (seq - tail.get() >= limit) {
+                if (mayDrop) {
+                    return false;
+                }
+                Thread.yield();
+            } else if (head.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        int slot = (int) (seq % capacity);
+        int offset = slot * RECORD_SIZE;
+        // absolute puts don't touch the buffer position, so different slots can be written concurrently
+        records.putLong(offset, System.nanoTime());
+        records.putLong(offset + 8, threadId);
+        records.putInt(offset + 16, methodId);
+        // lazySet orders the writes above before the publication
+        published.lazySet(slot, seq + 1);
+        return true;
+    }
+
+    private void exit(ThreadState state) {
+        if (state.dropped > 0) {
+            state.dropped--;
+        } else {
+            // exits are not dropped while the recorder is running, otherwise the events would not be balanced.
+            // with DROP policy their space is reserved, so they don't wait, the reservation is released
+            // only after the exit takes its slot
+            offer(state.threadId, EXIT_ID, false);
+            if (dropPolicy == DropPolicy.DROP) {
+                reservedExits.decrementAndGet();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                // the flag is read before draining so that nothing published before close is lost
+                boolean stop = !running;
+                if (drain() == 0) {
+                    writer.flush();
+                    if (stop) {
+                        return;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("ring buffer recorder: unable to write events, recording is stopped: "
+                    + e.getMessage());
+            // nobody reads the buffer anymore so new calls should not wait for it
+            running = false;
+        }
+    }
+
+    private int drain() throws IOException {
+        long seq = tail.get();
+        int drained = 0;
+        while (true) {
+            int slot = (int) (seq % capacity);
+            if (published.get(slot) != seq + 1) {
+                break;
+            }
+            int offset = slot * RECORD_SIZE;
+            writer.write(records.getLong(offset), records.getLong(offset + 8), records.getInt(offset + 16));
+            seq++;
+            drained++;
+            tail.lazySet(seq);
+        }
+        writtenEvents += drained;
+        return drained;
+    }
+
+    private class ThreadState implements CallTree.Overseer {
+        private final long threadId = Thread.currentThread().getId();
+        // depth of dropped calls on the stack
+        private int dropped;
+
+        @Override
+        public void close() {
+            exit(this);
+        }
+    }
+
+    /**
+     * File starts with {@link #MAGIC} and consists of records, each starting with a tag byte.
+     * All numbers are unsigned varints, strings are stored as length and UTF-8 bytes.
+     * <ul>
+     * <li>{@link #METHOD}: id, class name, method name and parameter type names,
+     * empty strings stand for null</li>
+     * <li>{@link #ENTER}: thread id, method id, time</li>
+     * <li>{@link #EXIT}: thread id, time</li>
+     * </ul>
+     * Time is stored as zigzag-encoded difference with the previous event of the file.
+     * Every file has its own method definitions so it can be read even when older files are deleted.
+     */
+    private static class EventFileWriter implements Closeable {
+        private final File base;
+        private final long maxFileBytes;
+        private final int maxFiles;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        private final Set<Integer> definedMethods = new HashSet<>();
+        private FileChannel channel;
+        private int index = -1;
+        private long fileBytes;
+        private long prevNanos;
+
+        EventFileWriter(File base, long maxFileBytes, int maxFiles) throws IOException {
+            this.base = base;
+            this.maxFileBytes = maxFileBytes;
+            this.maxFiles = maxFiles;
+            nextFile();
+        }
+
+        void write(long nanos, long threadId, int methodId) throws IOException {
+            if (fileBytes + buffer.position() >= maxFileBytes) {
+                nextFile();
+            }
+            if (methodId != EXIT_ID && definedMethods.add(methodId)) {
+                defineMethod(methodId);
+            }
+            ensure(1 + 5 + 2 * 10);
+            buffer.put(methodId == EXIT_ID ? EXIT : ENTER);
+            writeVarlong(threadId);
+            if (methodId != EXIT_ID) {
+                writeVarlong(methodId);
+            }
+            long delta = nanos - prevNanos;
+            writeVarlong(delta << 1 ^ delta >> 63);
+            prevNanos = nanos;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                fileBytes += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void nextFile() throws IOException {
+            if (channel != null) {
+                close();
+            }
+            index++;
+            channel = FileChannel.open(file(base, index).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            Files.deleteIfExists(file(base, index - maxFiles).toPath());
+            fileBytes = 0;
+            prevNanos = 0;
+            definedMethods.clear();
+            buffer.putInt(MAGIC);
+        }
+
+        private void defineMethod(int id) throws IOException {
+            CallSite site = MethodTable.get(id);
+            Method method = site.getMethod();
+            Class<?>[] params = method == null ? new Class<?>[0] : method.getParameterTypes();
+            ensure(1 + 2 * 5);
+            buffer.put(METHOD);
+            writeVarlong(id);
+            writeString(site.getCaller() == null ? "" : site.getCaller().getName());
+            writeString(method == null ? "" : method.getName());
+            ensure(5);
+            writeVarlong(params.length);
+            for (Class<?> param : params) {
+                writeString(param.getName());
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ensure(5 + bytes.length);
+            writeVarlong(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void writeVarlong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+    private static class EventFileReader {
+        private final DataInputStream in;
+        private final Map<Integer, CallSite> methods = new HashMap<>();
+        private long prevNanos;
+
+        private EventFileReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        static void read(File f, Map<Long, CallTree> trees) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a ring buffer recorder file: " + f);
+                }
+                new EventFileReader(in).replay(trees);
+            }
+        }
+
+        private void replay(Map<Long, CallTree> trees) throws IOException {
+            int tag;
+            while ((tag = in.read()) >= 0) {
+                switch (tag) {
+                    case METHOD:
+                        readMethod();
+                        break;
+                    case ENTER: {
+                        CallTree tree = tree(trees, readVarlong());
+                        CallSite site = methods.get((int) readVarlong());
+                        if (site == null) {
+                            throw new IOException("file is corrupted, undefined method");
+                        }
+                        int arity = site.getMethod() == null ? 0 : site.getMethod().getParameterCount();
+                        tree.enter(site, new Object[arity], readNanos());
+                        break;
+                    }
+                    case EXIT: {
+                        CallTree tree = tree(trees, readVarlong());
+                        long nanos = readNanos();
+                        // the call may have started in a file that is already deleted
+                        if (!tree.isBalanced()) {
+                            tree.exit(nanos);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("file is corrupted, unknown record " + tag);
+                }
+            }
+        }
+
+        private static CallTree tree(Map<Long, CallTree> trees, long threadId) {
+            return trees.computeIfAbsent(threadId, id -> {
+                CallTree tree = new CallTree();
+                tree.getSettings().setArgumentPolicy(ArgumentPolicy.none());
+                return tree;
+            });
+        }
+
+        private void readMethod() throws IOException {
+            int id = (int) readVarlong();
+            String className = readString();
+            String name = readString();
+            Class<?>[] params = new Class<?>[(int) readVarlong()];
+            try {
+                for (int i = 0; i < params.length; i++) {
+                    params[i] = Util.forName(readString());
+                }
+                Class<?> caller = className.isEmpty() ? null : Class.forName(className);
+                Method method = name.isEmpty() ? null : Util.getMethod(caller, name, params);
+                methods.put(id, new CallSite(caller, method));
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                throw new IOException("unable to restore method " + className + "." + name, e);
+            }
+        }
+
+        private long readNanos() throws IOException {
+            long zigzag = readVarlong();
+            prevNanos += zigzag >>> 1 ^ -(zigzag & 1);
+            return prevNanos;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[(int) readVarlong()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private long readVarlong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("file is corrupted, malformed varint");
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Writes call trees with {@link CallTree#write(OutputStream)} and their offsets to {@link TraceIndex}.
+ */
+public class TextTraceWriter implements Closeable {
+    private static final ProfilerMetrics METRICS = ProfilerMetrics.get();
+
+    private final File file;
+    private final FileOutputStream out;
+    private long[] offsets = new long[16];
+    private int size;
+
+    public TextTraceWriter(File f) throws IOException {
+        file = f;
+        out = new FileOutputStream(f);
+    }
+
+    public void write(AbstractCallTree<?> tree) throws IOException {
+        if (size + 1 == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        // tree is flushed after writing, so the position is exact
+        offsets[size++] = out.getChannel().position();
+        write(tree, out);
+    }
+
+    /**
+     * Writes the tree to a file or a socket and counts it in write metrics,
+     * trees written to memory are not counted.
+     */
+    static void write(AbstractCallTree<?> tree, OutputStream out) throws IOException {
+        if (!METRICS.isEnabled()) {
+            tree.write(out);
+            return;
+        }
+        long start = System.nanoTime();
+        ProfilerMetrics.CountingOutputStream counter = new ProfilerMetrics.CountingOutputStream(out);
+        tree.write(counter);
+        METRICS.written(1, counter.getCount(), System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            offsets[size] = out.getChannel().position();
+        } finally {
+            out.close();
+        }
+        new TraceIndex(Arrays.copyOf(offsets, size + 1), file.lastModified()).write(TraceIndex.fileFor(file));
+    }
+}
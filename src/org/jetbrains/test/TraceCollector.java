@@ -0,0 +1,447 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merges call trees recorded by many JVMs into one aggregated tree: calls of a method from the same
+ * call path share one entry with summed counts and times, arguments of the first call are kept as a sample.
+ * Trees are received over TCP connections on the loopback interface, see {@link AsyncTraceWriter#connect(SocketAddress)}
+ * and the collector option of {@link ProfilingAgent}, and from trace files that appear in a spool directory.
+ * <pre>
+ * <code>java -cp out:app.jar org.jetbrains.test.TraceCollector port=7000 spool=traces output=merged.txt interval=10</code></pre>
+ * Every connection is parsed by a thread of its own into a batch tree, batches are merged into the shared tree
+ * when nothing else is received yet or when they grow large, so producers rarely wait for each other.
+ * Classes of profiled methods must be on the class path of the collector, as for {@link CallTree#parse(File)}.
+ * <p>
+ * Spool files are merged when their names end with .txt or .ctz (text format, compressed or not), .bin
+ * (see {@link BinaryTraceWriter}) or .ser (serialized trees), so producers should write them under
+ * another name and rename them when they are complete. Merged files are renamed with {@link #MERGED_SUFFIX},
+ * files that can't be read with {@link #FAILED_SUFFIX}. Files written by {@link #write(File)} are never merged,
+ * so the output may be kept in the spool directory.
+ */
+public class TraceCollector implements Closeable {
+    public static final String MERGED_SUFFIX = ".merged";
+    public static final String FAILED_SUFFIX = ".failed";
+    // trees of a connection that are merged into the shared tree at once at most
+    private static final ProfilerMetrics METRICS = ProfilerMetrics.get();
+    private static final int BATCH_TREES = 256;
+    private static final long SCAN_PERIOD_MILLIS = 1000;
+
+    // guarded by this
+    private final CallTree.CallTreeEntry root = new CallTree.CallTreeEntry(0, null, null, null, null);
+    private final ServerSocketChannel server;
+    private final File spool;
+    private final Object spoolLock = new Object();
+    private final Object outputLock = new Object();
+    private final ExecutorService receivers;
+    private final ScheduledExecutorService scanner;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    // files written by the collector itself
+    private final Set<File> outputs = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private final LongAdder mergedTrees = new LongAdder();
+    private final LongAdder mergedFiles = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    /**
+     * @param port  port on the loopback interface, 0 picks a free one and -1 doesn't listen at all
+     * @param spool directory that is scanned for trace files every second, may be null
+     */
+    public TraceCollector(int port, File spool) throws IOException {
+        this(port, spool, null);
+    }
+
+    /**
+     * @param output file the merged tree is going to be written to, it's not merged even if it's in the spool
+     */
+    public TraceCollector(int port, File spool, File output) throws IOException {
+        this.spool = spool;
+        if (output != null) {
+            outputs.add(output.getAbsoluteFile());
+        }
+        AtomicInteger threads = new AtomicInteger();
+        receivers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "trace-collector-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (port >= 0) {
+            server = ServerSocketChannel.open();
+            try {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            } catch (IOException e) {
+                server.close();
+                receivers.shutdown();
+                throw e;
+            }
+            receivers.execute(this::accept);
+        } else {
+            server = null;
+        }
+        if (spool != null) {
+            scanner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "trace-collector-spool");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scanner.scheduleWithFixedDelay(this::scanSpool, 0, SCAN_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            scanner = null;
+        }
+    }
+
+    /**
+     * Runs the collector until the JVM is stopped, options are key=value:
+     * port (7000 by default), spool, output (merged.txt by default) and interval
+     * of writing the output in seconds (10 by default). The output is written at shutdown too.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 7000;
+        File spool = null;
+        File output = new File("merged.txt");
+        long interval = 10;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "spool":
+                    spool = new File(value);
+                    break;
+                case "output":
+                    output = new File(value);
+                    break;
+                case "interval":
+                    interval = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("unknown option " + arg);
+            }
+        }
+        TraceCollector collector = new TraceCollector(port, spool, output);
+        File file = output;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                collector.close();
+                collector.write(file);
+            } catch (IOException e) {
+                System.err.println("can not write merged trees: " + e.getMessage());
+            }
+            System.err.println("collector: " + collector);
+        }, "collector shutdown"));
+        System.err.println("collecting trees on " + collector.getAddress() + (spool == null ? "" : " and from " + spool));
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(interval));
+            try {
+                collector.write(file);
+            } catch (IOException e) {
+                System.err.println("can not write merged trees: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return address the collector listens on, null if it doesn't
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return server == null ? null : (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Merges the tree into the shared tree.
+     */
+    public void merge(AbstractCallTree<?> tree) {
+        Merger merger = new Merger(null);
+        tree.accept(merger);
+        merger.flush();
+    }
+
+    /**
+     * @return copy of the merged tree
+     */
+    public synchronized CallTree getTree() {
+        CallTree.CallTreeEntry result = new CallTree.CallTreeEntry(0, null, null, null, null);
+        for (CallTree.CallTreeEntry child : root.getChildren()) {
+            result.getChildren().add(child.copy(result));
+        }
+        return new CallTree(result);
+    }
+
+    /**
+     * Writes the merged tree, the file is replaced at once, so it can be read at any time.
+     */
+    public void write(File f) throws IOException {
+        outputs.add(f.getAbsoluteFile());
+        CallTree tree = getTree();
+        File tmp = new File(f.getPath() + ".tmp");
+        synchronized (outputLock) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+                TextTraceWriter.write(tree, out);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Merges complete files of the spool directory, it's done every second anyway.
+     */
+    public void scanSpool() {
+        synchronized (spoolLock) {
+            File[] files = spool.listFiles((dir, name) -> name.endsWith(".txt") || name.endsWith(".ctz")
+                    || name.endsWith(".bin") || name.endsWith(".ser"));
+            if (files == null) {
+                return;
+            }
+            // files of one producer are merged in order of their names
+            Arrays.sort(files);
+            for (File f : files) {
+                if (closed) {
+                    return;
+                }
+                if (outputs.contains(f.getAbsoluteFile())) {
+                    continue;
+                }
+                Merger merger = new Merger(null);
+                try {
+                    read(f, merger);
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    // trees read before the error may be merged already
+                    System.err.println("can not read " + f + ", it is skipped: " + e);
+                    if (!f.renameTo(new File(f.getPath() + FAILED_SUFFIX))) {
+                        System.err.println("can not rename " + f + ", it will be read again");
+                    }
+                    continue;
+                }
+                merger.flush();
+                mergedFiles.increment();
+                if (!f.renameTo(new File(f.getPath() + MERGED_SUFFIX))) {
+                    System.err.println("can not rename " + f + ", it will be merged again");
+                }
+            }
+        }
+    }
+
+    // text files are counted in parse metrics by CallTree.parse, others are counted here
+    private static void read(File f, CallTreeVisitor visitor) throws IOException, ClassNotFoundException {
+        long start = METRICS.isEnabled() ? System.nanoTime() : 0;
+        if (f.getName().endsWith(".bin")) {
+            try (BinaryTraceReader reader = new BinaryTraceReader(f)) {
+                reader.accept(visitor);
+            }
+        } else if (f.getName().endsWith(".ser")) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                while (true) {
+                    CallTree tree;
+                    try {
+                        tree = (CallTree) in.readObject();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    tree.accept(visitor);
+                }
+            }
+        } else {
+            CallTree.parse(f, visitor);
+            return;
+        }
+        if (start != 0) {
+            METRICS.parsed(f.length(), System.nanoTime() - start);
+        }
+    }
+
+    public long getMergedTrees() {
+        return mergedTrees.sum();
+    }
+
+    public long getMergedFiles() {
+        return mergedFiles.sum();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    /**
+     * Stops receiving trees, trees that are received already stay merged.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scanner != null) {
+            scanner.shutdown();
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } finally {
+            // receivers merge what they have got when their connections are closed
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+            receivers.shutdown();
+        }
+        try {
+            receivers.awaitTermination(10, TimeUnit.SECONDS);
+            if (scanner != null) {
+                scanner.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the collector");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d trees merged from %d connections and %d files",
+                getMergedTrees(), getAcceptedConnections(), getMergedFiles());
+    }
+
+    private void accept() {
+        while (!closed) {
+            SocketChannel connection;
+            try {
+                connection = server.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("collector can not accept connections: " + e.getMessage());
+                }
+                return;
+            }
+            acceptedConnections.increment();
+            connections.add(connection);
+            if (closed) {
+                // close() may have missed it
+                closeQuietly(connection);
+            }
+            receivers.execute(() -> receive(connection));
+        }
+    }
+
+    private void receive(SocketChannel connection) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                Channels.newInputStream(connection), StandardCharsets.UTF_8), 1 << 16)) {
+            Merger merger = new Merger(in);
+            try {
+                CallTree.parse(in, merger);
+            } finally {
+                merger.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("connection to a producer is lost: " + e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            // trees received before are merged, the producer is disconnected
+            System.err.println("producer has sent malformed trees: " + e);
+        } finally {
+            connections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // nothing else can be done with it
+        }
+    }
+
+    // merges entries of the batch and their callees into the shared tree
+    private synchronized void merge(CallTree.CallTreeEntry batch, int trees) {
+        ArrayDeque<CallTree.CallTreeEntry> sources = new ArrayDeque<>();
+        ArrayDeque<CallTree.CallTreeEntry> targets = new ArrayDeque<>();
+        sources.push(batch);
+        targets.push(root);
+        while (!sources.isEmpty()) {
+            CallTree.CallTreeEntry source = sources.pop();
+            CallTree.CallTreeEntry target = targets.pop();
+            for (CallTree.CallTreeEntry child : source.getChildren()) {
+                sources.push(child);
+                targets.push(target.mergeCalls(child.getCaller(), child.getMethod(), child.getArgs(), child.isAsync(),
+                        child.getCalls(), child.getTotalTime()));
+            }
+        }
+        mergedTrees.add(trees);
+    }
+
+    // merges visited trees into a batch, which is merged into the shared tree
+    // when the input has nothing else buffered or when the batch is large enough
+    private class Merger implements CallTreeVisitor {
+        private final BufferedReader in;
+        private CallTree.CallTreeEntry batch = new CallTree.CallTreeEntry(0, null, null, null, null);
+        private final EntryPath<CallTree.CallTreeEntry> path = new EntryPath<>(() -> batch);
+        private int trees;
+
+        Merger(BufferedReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public void onEnter(int depth, Class<?> caller, Method method, String[] args,
+                            long calls, long totalNanos, long selfNanos) {
+            add(depth, caller, method, args, false, calls, totalNanos);
+        }
+
+        @Override
+        public void onAsyncEnter(int depth, Class<?> caller, Method method, String[] args,
+                                 long calls, long totalNanos, long selfNanos) {
+            add(depth, caller, method, args, true, calls, totalNanos);
+        }
+
+        private void add(int depth, Class<?> caller, Method method, String[] args, boolean async,
+                         long calls, long totalNanos) {
+            if (depth == 0) {
+                path.start(batch);
+                return;
+            }
+            path.push(path.parent(depth).mergeCalls(caller, method, args, async, calls, totalNanos));
+        }
+
+        @Override
+        public void onTreeEnd() {
+            path.clear();
+            trees++;
+            boolean waiting;
+            try {
+                waiting = in != null && !in.ready();
+            } catch (IOException e) {
+                waiting = true;
+            }
+            if (waiting || trees >= BATCH_TREES) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (trees > 0) {
+                merge(batch, trees);
+                batch = new CallTree.CallTreeEntry(0, null, null, null, null);
+                trees = 0;
+            }
+        }
+    }
+}
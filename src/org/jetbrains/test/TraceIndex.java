@@ -0,0 +1,126 @@
+package org.jetbrains.test;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Offsets of trees in a file written with {@link CallTree#write(OutputStream)},
+ * so that trees can be located without scanning the file.
+ * The index is kept next to the file, see {@link #fileFor(File)}, and is written by {@link TextTraceWriter}.
+ * <p>
+ * Index file consists of {@link #MAGIC}, the time the indexed file was last modified, amount of trees n
+ * and n + 1 offsets, the last one is the size of the indexed file. The index is outdated if either
+ * the size or the modification time of the file differ, so files rewritten with the same size are detected too.
+ */
+public class TraceIndex {
+    static final int MAGIC = 0x43544932;
+
+    // offsets[i] is the start of the i-th tree, the last one is the end of the last tree
+    private final long[] offsets;
+    // File.lastModified() of the indexed file
+    private final long modified;
+
+    TraceIndex(long[] offsets, long modified) {
+        this.offsets = offsets;
+        this.modified = modified;
+    }
+
+    public static File fileFor(File data) {
+        return new File(data.getPath() + ".idx");
+    }
+
+    /**
+     * Reads the index of the given file if it is present and up to date, otherwise builds it by scanning the file.
+     */
+    public static TraceIndex of(File data) throws IOException {
+        File f = fileFor(data);
+        if (f.exists()) {
+            try {
+                TraceIndex index = read(f);
+                if (index.offsets[index.size()] == data.length() && index.modified == data.lastModified()) {
+                    return index;
+                }
+                System.err.println("index " + f + " is outdated, scanning the file");
+            } catch (IOException e) {
+                // e.g. an index of an older format
+                System.err.println("can not read index " + f + ", scanning the file: " + e.getMessage());
+            }
+        }
+        return scan(data);
+    }
+
+    public static TraceIndex read(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not an index file: " + f);
+            }
+            long modified = in.readLong();
+            long[] offsets = new long[in.readInt() + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+            }
+            return new TraceIndex(offsets, modified);
+        }
+    }
+
+    /**
+     * Finds trees by blank lines between them.
+     */
+    public static TraceIndex scan(File data) throws IOException {
+        // taken before reading, so that changes made meanwhile make the index outdated
+        long modified = data.lastModified();
+        long[] offsets = new long[16];
+        int size = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(data), 1 << 16)) {
+            long position = 0;
+            boolean lineStart = true;
+            boolean inTree = false;
+            int b;
+            while ((b = in.read()) != -1) {
+                if (lineStart && b != '\n' && b != '\r' && !inTree) {
+                    if (size == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, size * 2);
+                    }
+                    offsets[size++] = position;
+                    inTree = true;
+                } else if (lineStart && b == '\n') {
+                    inTree = false;
+                }
+                // caret return before line feed doesn't make a line non-empty
+                if (b != '\r') {
+                    lineStart = b == '\n';
+                }
+                position++;
+            }
+            offsets = Arrays.copyOf(offsets, size + 1);
+            offsets[size] = position;
+        }
+        return new TraceIndex(offsets, modified);
+    }
+
+    public void write(File f) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(modified);
+            out.writeInt(size());
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+        }
+    }
+
+    /**
+     * @return amount of trees
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public long start(int tree) {
+        return offsets[tree];
+    }
+
+    public long end(int tree) {
+        return offsets[tree + 1];
+    }
+}